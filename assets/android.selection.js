@@ -1,3 +1,5 @@
+// Selection runtime. Self contained, needs no other scripts on the page.
+
 // Namespace
 var android = {};
 android.selection = {};
@@ -9,11 +11,29 @@ android.selection.selectionEndRange = null;
 /** The last point touched by the user. { 'x': xPoint, 'y': yPoint } */
 android.selection.lastTouchPoint = null;
 
+/** Version of the packed selection record sent to the app. */
+android.selection.payloadVersion = 2;
+
+/** Sequence number of the last command from the app, echoed back in selection records. */
+android.selection.sequence = 0;
+
+
+/**
+ * Saves the sequence number of the command being handled, if the app sent one.
+ */
+android.selection.setSequence = function(seq){
+	if(seq !== undefined){
+		android.selection.sequence = parseInt(seq + "", 10);
+	}
+};
+
 
 /** 
  * Starts the touch and saves the given x and y coordinates as last touch point
  */
-android.selection.startTouch = function(x, y){
+android.selection.startTouch = function(x, y, seq){
+	
+	android.selection.setSequence(seq);
 	
 	android.selection.lastTouchPoint = {'x': parseFloat(x + ""), 'y': parseFloat(y + "")};
 	
@@ -34,9 +54,11 @@ android.selection.hasSelection = function(){
 /**
  *	Clears the current selection.
  */
-android.selection.clearSelection = function(){
+android.selection.clearSelection = function(seq){
 	
 	try{
+		android.selection.setSequence(seq);
+		
 		// if current selection clear it.
 	   	var sel = window.getSelection();
 	   	sel.removeAllRanges();
@@ -49,10 +71,12 @@ android.selection.clearSelection = function(){
 /**
  *	Handles the long touch action by selecting the last touched element.
  */
-android.selection.longTouch = function() {
+android.selection.longTouch = function(seq) {
 
 	try{
     
+    	android.selection.setSequence(seq);
+    
     	android.selection.clearSelection();
     	
 	   	// if current selection clear it.
@@ -70,8 +94,8 @@ android.selection.longTouch = function() {
 	   	android.selection.saveSelectionEnd();
 	   	
 	   	
-	   	// Show the context menu in app
-	   	android.selection.selectionChanged();
+	   	// Show the context menu in app, a single word is cheap to measure
+	   	android.selection.selectionChanged(true);
 	   	//android.selection.selectBetweenHandles();
 	   	
 	 }
@@ -83,10 +107,15 @@ android.selection.longTouch = function() {
 
 /**
  * Tells the app to show the context menu. 
+ * 
+ * @param measureText Whether to count the selected text when offsets can't. Counting builds the
+ *        whole selected string, so drag updates leave it to the app's drag end call.
+ * @param seq Sequence number of the app's command, if it sent one
  */
-android.selection.selectionChanged = function(){
+android.selection.selectionChanged = function(measureText, seq){
 
 	try{
+		android.selection.setSequence(seq);
 	
 		var sel = window.getSelection();
 		
@@ -96,33 +125,20 @@ android.selection.selectionChanged = function(){
 		
 		var range = sel.getRangeAt(0);
 		
+		// Measure the carets without touching the DOM, in page coordinates
+		var scrollX = window.pageXOffset;
+		var scrollY = window.pageYOffset;
 		
-		// Add spans to the selection to get page offsets
-		var selectionEnd = $("<span id=\"selectionEnd\"/>");
-	    var selectionStart = $("<span id=\"selectionStart\"/>");
-	    
+		var caret = android.selection.caretRect(range.startContainer, range.startOffset);
+		var startLeft = caret.left + scrollX;
+		var startTop = caret.top + scrollY;
 		
-		var startRange = document.createRange();
-    	startRange.setStart(range.startContainer, range.startOffset);
-    	startRange.insertNode(selectionStart[0]);
+		caret = android.selection.caretRect(range.endContainer, range.endOffset);
 		
-		var endRange = document.createRange();
-    	endRange.setStart(range.endContainer, range.endOffset);
-    	endRange.insertNode(selectionEnd[0]);
-	    
-	   	var handleBounds = { "left": selectionStart.offset().left,
-	   						 "top": selectionStart.offset().top,
-	   						 "right": selectionEnd.offset().left,
-	   						 "bottom": selectionEnd.offset().top };
-	   	
-	   	
-	   	// Pull the spans
-	   	selectionStart.remove();
-	   	selectionEnd.remove();
-	   	
-	   	// Reset range
-	   	sel.removeAllRanges();
-	   	sel.addRange(range);
+	   	var handleBounds = { "left": startLeft,
+	   						 "top": startTop,
+	   						 "right": caret.left + scrollX,
+	   						 "bottom": caret.top + scrollY };
 	   	
 	   	// Menu bounds
 	   	var rect = range.getBoundingClientRect();
@@ -133,17 +149,15 @@ android.selection.selectionChanged = function(){
 	   					   "right": rect.right,
 	   					   "bottom": rect.bottom };
 	   	
-	   	// Rangy
-	   	var rangyRange = android.selection.getRange();
-	   	
-	   	// Text to send to the selection
-	   	var text = window.getSelection().toString();
-	   	
-	   	// Set the content width
-	   	window.TextSelection.setContentWidth(document.body.clientWidth);
+	   	// Only the length goes with the update, the text is fetched on demand
+	   	var textLength = android.selection.textLength(range);
+	   	if(textLength < 0 && measureText){
+	   		textLength = sel.toString().length;
+	   	}
 	   	
 	   	// Tell the interface that the selection changed
-	   	window.TextSelection.selectionChanged(rangyRange, text, JSON.stringify(handleBounds), JSON.stringify(menuBounds));
+	   	var payload = android.selection.packPayload(document.body.clientWidth, handleBounds, menuBounds, textLength);
+	   	window.TextSelection.selectionChanged(payload);
 	   	
 	}
 	catch(err){
@@ -153,23 +167,230 @@ android.selection.selectionChanged = function(){
 
 
 
+/**
+ * Returns the length of the range's text without building it, or -1 if that takes the string.
+ * Only a range within one text node can be counted from its offsets.
+ */
+android.selection.textLength = function(range){
+	
+	if(range.collapsed){
+		return 0;
+	}
+	
+	if(range.startContainer === range.endContainer && range.startContainer.nodeType == 3){
+		return range.endOffset - range.startOffset;
+	}
+	
+	return -1;
+};
+
+
+
+/** Reused range for caret measurement. */
+android.selection.caretRange = null;
+
+/** Reused caret rect, { 'left': x, 'top': y }, relative to the viewport. */
+android.selection.caretPoint = { 'left': 0, 'top': 0 };
+
+
+/**
+ * Returns the viewport position of the caret at the given boundary point. Only reads layout,
+ * so unlike inserting a marker node it doesn't dirty style or layout. The returned object is reused.
+ * 
+ * A collapsed range has no client rects at some boundaries, in which case the neighbouring
+ * character is measured instead: the left edge of the next one, or the right edge of the previous one.
+ */
+android.selection.caretRect = function(container, offset){
+	
+	var range = android.selection.caretRange;
+	if(!range){
+		range = android.selection.caretRange = document.createRange();
+	}
+	
+	var point = android.selection.caretPoint;
+	var rects, rect;
+	
+	range.setStart(container, offset);
+	range.setEnd(container, offset);
+	
+	rects = range.getClientRects();
+	if(rects.length > 0){
+		rect = rects[0];
+		point.left = rect.left;
+		point.top = rect.top;
+		return point;
+	}
+	
+	var length = (container.nodeType == 3) ? container.length : container.childNodes.length;
+	
+	// Next character
+	if(offset < length){
+		range.setEnd(container, offset + 1);
+		rects = range.getClientRects();
+		if(rects.length > 0){
+			rect = rects[0];
+			point.left = rect.left;
+			point.top = rect.top;
+			return point;
+		}
+	}
+	
+	// Previous character
+	if(offset > 0){
+		range.setStart(container, offset - 1);
+		range.setEnd(container, offset);
+		rects = range.getClientRects();
+		if(rects.length > 0){
+			rect = rects[rects.length - 1];
+			point.left = rect.right;
+			point.top = rect.top;
+			return point;
+		}
+	}
+	
+	// Nothing laid out here, fall back to the container's box
+	rect = (container.nodeType == 3) ? container.parentNode.getBoundingClientRect() : container.getBoundingClientRect();
+	point.left = rect.left;
+	point.top = rect.top;
+	return point;
+};
+
+
+
+/**
+ * Packs the content width, handle bounds, menu bounds and text length into the record read by SelectionPayload.java.
+ * version,sequence,contentWidth,handleLeft,handleTop,handleRight,handleBottom,menuLeft,menuTop,menuRight,menuBottom,textLength
+ */
+android.selection.packPayload = function(contentWidth, handleBounds, menuBounds, textLength){
+	
+	var round = function(value){
+		return Math.round(value * 100) / 100;
+	};
+	
+	return [android.selection.payloadVersion,
+	        android.selection.sequence,
+	        round(contentWidth),
+	        round(handleBounds.left), round(handleBounds.top), round(handleBounds.right), round(handleBounds.bottom),
+	        round(menuBounds.left), round(menuBounds.top), round(menuBounds.right), round(menuBounds.bottom),
+	        textLength].join(",");
+};
+
+
+
+/**
+ * Sends the selected text, or a slice of it, to the app for the given request.
+ * 
+ * @param requestId Id the app uses to match the reply
+ * @param start Index of the first character to send
+ * @param maxLength Max number of characters to send, negative for no limit
+ */
+android.selection.getSelectedText = function(requestId, start, maxLength){
+	
+	try{
+		var text = window.getSelection().toString();
+		
+		start = Math.max(0, parseInt(start + "", 10) || 0);
+		maxLength = parseInt(maxLength + "", 10);
+		
+		text = (maxLength >= 0) ? text.substring(start, start + maxLength) : text.substring(start);
+		
+		window.TextSelection.selectedText(requestId, text);
+	}
+	catch(err){
+		window.TextSelection.jsError("getSelectedText - " + err);
+		window.TextSelection.selectedText(requestId, null);
+	}
+};
+
+
+
+/**
+ * Sends the serialized selection range to the app for the given request,
+ * along with the sequence number of the selection it describes.
+ * 
+ * @param requestId Id the app uses to match the reply
+ */
+android.selection.getSerializedRange = function(requestId){
+	
+	var range = android.selection.getRange();
+	
+	window.TextSelection.serializedRange(requestId, android.selection.sequence, (range !== undefined) ? range : null);
+};
+
+
+
+/**
+ * Sends the serialized range and the selected text to the app in one call, along with
+ * the sequence number of the selection they describe.
+ * 
+ * @param requestId Id the app uses to match the reply
+ */
+android.selection.getSnapshot = function(requestId){
+	
+	var range = android.selection.getRange();
+	var text = null;
+	
+	try{
+		text = window.getSelection().toString();
+	}
+	catch(err){
+		window.TextSelection.jsError("getSnapshot - " + err);
+	}
+	
+	window.TextSelection.selectionSnapshot(requestId, android.selection.sequence, (range !== undefined) ? range : null, text);
+};
+
+
+
+/**
+ * Serializes the current selection in rangy's format, without the checksum, so it can still be
+ * restored with rangy.deserializeSelection. Each boundary is the path of child indexes from
+ * the document element down to its container, followed by the offset:
+ * <pre>
+ * 0/3/1:12,0/3/4:5
+ * </pre>
+ * Only the first range is serialized. Returns undefined when nothing is selected.
+ */
 android.selection.getRange = function() {
 	try{
 		
-	    var serializedRangeSelected = rangy.serializeSelection();
-	    var serializerModule = rangy.modules.Serializer;
-	    if (serializedRangeSelected != '') {
-	        if (rangy.supported && serializerModule && serializerModule.supported) {
-	            var beginingCurly = serializedRangeSelected.indexOf("{");
-	            serializedRangeSelected = serializedRangeSelected.substring(0, beginingCurly);
-	            return serializedRangeSelected;
-	        }
-	    }
+		var sel = window.getSelection();
+		if(!sel || sel.rangeCount == 0){
+			return undefined;
+		}
+		
+		var range = sel.getRangeAt(0);
+		
+		return android.selection.serializePosition(range.startContainer, range.startOffset) + "," +
+			android.selection.serializePosition(range.endContainer, range.endOffset);
     }
     catch(err){
 		window.TextSelection.jsError("getRange - " + err);
 	}
-}
+};
+
+/**
+ * Serializes a boundary point the way rangy.serializePosition does, relative to the document element.
+ */
+android.selection.serializePosition = function(node, offset){
+	
+	var root = document.documentElement;
+	var path = [];
+	
+	while(node && node != root){
+		
+		var index = 0;
+		var sibling = node;
+		while((sibling = sibling.previousSibling)){
+			index++;
+		}
+		
+		path.push(index);
+		node = node.parentNode;
+	}
+	
+	return path.join("/") + ":" + offset;
+};
 
 
 
@@ -226,9 +447,10 @@ android.selection.saveSelectionEnd = function(){
 /**
  * Sets the last caret position for the start handle.
  */
-android.selection.setStartPos = function(x, y){
+android.selection.setStartPos = function(x, y, seq){
 	
 	try{
+		android.selection.setSequence(seq);
 		
 		android.selection.selectionStartRange = document.caretRangeFromPoint(parseFloat(x + ""), parseFloat(y + ""));
 		
@@ -242,9 +464,11 @@ android.selection.setStartPos = function(x, y){
 /**
  * Sets the last caret position for the end handle.
  */
-android.selection.setEndPos = function(x, y){
+android.selection.setEndPos = function(x, y, seq){
 	
 	try{
+		android.selection.setSequence(seq);
+		
 		android.selection.selectionEndRange = document.caretRangeFromPoint(parseFloat(x + ""), parseFloat(y + ""));
 		
 		android.selection.selectBetweenHandles();
@@ -21,7 +21,6 @@ package com.blahti.drag;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Rect;
 import android.os.IBinder;
 import android.os.Vibrator;
 import android.util.DisplayMetrics;
@@ -29,17 +28,18 @@ import android.util.Log;
 import android.view.View;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
+import android.view.ViewTreeObserver;
 import android.view.WindowManager;
 import android.view.inputmethod.InputMethodManager;
 
-import java.util.ArrayList;
-
 /**
  * This class is used to initiate a drag within a view or across multiple views.
  * When a drag starts it creates a special view (a DragView) that moves around the screen
  * until the user ends the drag. As feedback to the user, this object causes the device to
  * vibrate as the drag begins.
  *
+ * In {@link #DRAG_MODE_IN_WINDOW} no DragView is made, the dragged view is moved in place instead.
+ *
  */
 
 public class DragController {
@@ -51,6 +51,19 @@ public class DragController {
     /** Indicates the drag is a copy.  */
     public static int DRAG_ACTION_COPY = 1;
 
+    /**
+     * Drag image is a bitmap of the view in a window of its own, moved by the window manager.
+     * Works for any drop target, but costs a bitmap copy per drag and a window update per move.
+     */
+    public static final int DRAG_MODE_WINDOW = 0;
+
+    /**
+     * The dragged view itself is the drag image. It stays visible in its own hierarchy and the
+     * drop target moves it in {@link DropTarget#onDragOver}, the way {@link DragLayer} does.
+     * No bitmap and no extra window. Drop targets get a null DragView.
+     */
+    public static final int DRAG_MODE_IN_WINDOW = 1;
+
     private static final int VIBRATE_DURATION = 35;
 
     private static final boolean PROFILE_DRAWING_DURING_DRAG = false;
@@ -59,7 +72,6 @@ public class DragController {
     //private Vibrator mVibrator;
 
     // temporaries to avoid gc thrash
-    private Rect mRectTemp = new Rect();
     private final int[] mCoordinatesTemp = new int[2];
 
     /** Whether or not we're dragging. */
@@ -71,6 +83,9 @@ public class DragController {
     /** Y coordinate of the down event. */
     private float mMotionDownY;
 
+    /** Event time of the last touch event handled while dragging. */
+    private long mLastMotionEventTime;
+
     /** Info about the screen for clamping. */
     private DisplayMetrics mDisplayMetrics = new DisplayMetrics();
 
@@ -92,8 +107,11 @@ public class DragController {
     /** The view that moves around while you drag.  */
     private DragView mDragView;
 
-    /** Who can receive drop events */
-    private ArrayList<DropTarget> mDropTargets = new ArrayList<DropTarget>();
+    /** Who can receive drop events, with their screen bounds */
+    private DropTargetIndex mDropTargets = new DropTargetIndex();
+
+    /** The view tree watched for layout and scroll changes during a drag. */
+    private ViewTreeObserver mObserver;
 
     private DragListener mListener;
 
@@ -106,6 +124,12 @@ public class DragController {
 
     private InputMethodManager mInputMethodManager;
 
+    /** Drag shadows kept between drags in {@link #DRAG_MODE_WINDOW}. */
+    private DragShadowCache mShadowCache = new DragShadowCache();
+
+    /** How the drag image is drawn, {@link #DRAG_MODE_WINDOW} or {@link #DRAG_MODE_IN_WINDOW}. */
+    private int mDragMode = DRAG_MODE_WINDOW;
+
     
     /**
      * Used to create a new DragLayer from XML.
@@ -118,6 +142,33 @@ public class DragController {
 
     }
 
+    /**
+     * Sets how the drag image is drawn. Takes effect on the next drag.
+     *
+     * @param dragMode {@link #DRAG_MODE_WINDOW} or {@link #DRAG_MODE_IN_WINDOW}
+     */
+    public void setDragMode(int dragMode) {
+        mDragMode = dragMode;
+    }
+
+    public int getDragMode() {
+        return mDragMode;
+    }
+
+    /**
+     * Sets the cache drag shadows are kept in, so several controllers can share one.
+     */
+    public void setShadowCache(DragShadowCache cache) {
+        mShadowCache = cache;
+    }
+
+    /**
+     * Returns the drag shadow cache, to trim or clear it.
+     */
+    public DragShadowCache getShadowCache() {
+        return mShadowCache;
+    }
+
     /**
      * Used to notify the on drag event
      * */
@@ -145,22 +196,47 @@ public class DragController {
 
         mOriginator = v;
 
-        Bitmap b = getViewBitmap(v);
+        if (mDragMode == DRAG_MODE_IN_WINDOW) {
+            int[] loc = mCoordinatesTemp;
+            v.getLocationOnScreen(loc);
+            v.setPressed(false);
 
-        if (b == null) {
-            // out of memory?
+            beginDrag(v, loc[0], loc[1], source, dragInfo, dragAction);
             return;
         }
 
+        float scale = DragView.getShadowScale(v.getWidth());
+        Bitmap shadow = mShadowCache.get(v, scale);
+        boolean cached = shadow != null;
+
+        if (!cached) {
+            Bitmap b = getViewBitmap(v);
+
+            if (b == null) {
+                // out of memory?
+                return;
+            }
+
+            shadow = DragView.createShadow(b, 0, 0, b.getWidth(), b.getHeight());
+            if (shadow != b) {
+                b.recycle();
+            }
+            cached = mShadowCache.put(v, scale, shadow);
+        }
+
         int[] loc = mCoordinatesTemp;
         v.getLocationOnScreen(loc);
         int screenX = loc[0];
         int screenY = loc[1];
 
-        startDrag(b, screenX, screenY, 0, 0, b.getWidth(), b.getHeight(),
-                source, dragInfo, dragAction);
+        beginDrag(v, screenX, screenY, source, dragInfo, dragAction);
 
-        b.recycle();
+        if (cached) {
+            mShadowCache.setInUse(shadow);
+        }
+
+        showDragView(new DragView(mContext, shadow, ((int)mMotionDownX) - screenX,
+                ((int)mMotionDownY) - screenY, !cached));
 
         if (dragAction == DRAG_ACTION_MOVE) {
             v.setVisibility(View.GONE);
@@ -186,6 +262,28 @@ public class DragController {
     public void startDrag(Bitmap b, int screenX, int screenY,
             int textureLeft, int textureTop, int textureWidth, int textureHeight,
             DragSource source, Object dragInfo, int dragAction) {
+        beginDrag(null, screenX, screenY, source, dragInfo, dragAction);
+
+        int registrationX = ((int)mMotionDownX) - screenX;
+        int registrationY = ((int)mMotionDownY) - screenY;
+
+        showDragView(new DragView(mContext, b, registrationX, registrationY,
+                textureLeft, textureTop, textureWidth, textureHeight));
+    }
+
+    private void showDragView(DragView dragView) {
+        //mVibrator.vibrate(VIBRATE_DURATION);
+        mDragView = dragView;
+        dragView.show(mWindowToken, (int)mMotionDownX, (int)mMotionDownY);
+    }
+
+    /**
+     * Starts tracking a drag whose image is at the given screen position.
+     *
+     * @param v The view being dragged, may be null
+     */
+    private void beginDrag(View v, int screenX, int screenY, DragSource source, Object dragInfo,
+            int dragAction) {
         if (PROFILE_DRAWING_DURING_DRAG) {
             android.os.Debug.startMethodTracing("Launcher");
         }
@@ -201,9 +299,6 @@ public class DragController {
             mListener.onDragStart(source, dragInfo, dragAction);
         }
 
-        int registrationX = ((int)mMotionDownX) - screenX;
-        int registrationY = ((int)mMotionDownY) - screenY;
-
         mTouchOffsetX = mMotionDownX - screenX;
         mTouchOffsetY = mMotionDownY - screenY;
 
@@ -211,10 +306,53 @@ public class DragController {
         mDragSource = source;
         mDragInfo = dragInfo;
 
-        //mVibrator.vibrate(VIBRATE_DURATION);
-        DragView dragView = mDragView = new DragView(mContext, b, registrationX, registrationY,
-                textureLeft, textureTop, textureWidth, textureHeight);
-        dragView.show(mWindowToken, (int)mMotionDownX, (int)mMotionDownY);
+        // Targets may have moved since the last drag. From here on only a layout or scroll
+        // of the tree being dragged in can move them.
+        mDropTargets.invalidate();
+        watchDropTargets(v);
+    }
+
+    /**
+     * Invalidates the drop target bounds when the view tree lays out or scrolls.
+     */
+    private final ViewTreeObserver.OnGlobalLayoutListener mLayoutListener =
+            new ViewTreeObserver.OnGlobalLayoutListener() {
+        @Override
+        public void onGlobalLayout() {
+            mDropTargets.invalidate();
+        }
+    };
+
+    private final ViewTreeObserver.OnScrollChangedListener mScrollListener =
+            new ViewTreeObserver.OnScrollChangedListener() {
+        @Override
+        public void onScrollChanged() {
+            mDropTargets.invalidate();
+        }
+    };
+
+    private void watchDropTargets(View v) {
+        unwatchDropTargets();
+
+        if (v == null) {
+            return;
+        }
+
+        ViewTreeObserver observer = v.getViewTreeObserver();
+        if (observer.isAlive()) {
+            observer.addOnGlobalLayoutListener(mLayoutListener);
+            observer.addOnScrollChangedListener(mScrollListener);
+            mObserver = observer;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void unwatchDropTargets() {
+        if (mObserver != null && mObserver.isAlive()) {
+            mObserver.removeGlobalOnLayoutListener(mLayoutListener);
+            mObserver.removeOnScrollChangedListener(mScrollListener);
+        }
+        mObserver = null;
     }
 
     /**
@@ -276,6 +414,7 @@ public class DragController {
     private void endDrag() {
         if (mDragging) {
             mDragging = false;
+            unwatchDropTargets();
             if (mOriginator != null) {
                 mOriginator.setVisibility(View.VISIBLE);
             }
@@ -286,6 +425,8 @@ public class DragController {
                 mDragView.remove();
                 mDragView = null;
             }
+            // Nothing shows the shadow now, so the cache may recycle it
+            mShadowCache.setInUse(null);
         }
     }
 
@@ -348,6 +489,8 @@ public class DragController {
         final float screenX = clamp((int)ev.getRawX(), 0, mDisplayMetrics.widthPixels);
         final float screenY = clamp((int)ev.getRawY(), 0, mDisplayMetrics.heightPixels);
 
+        mLastMotionEventTime = ev.getEventTime();
+
         switch (action) {
         case MotionEvent.ACTION_DOWN:
             // Remember where the motion event started
@@ -357,7 +500,9 @@ public class DragController {
         case MotionEvent.ACTION_MOVE:
             // Update the drag view.  Don't use the clamped pos here so the dragging looks
             // like it goes off screen a little, intead of bumping up against the edge.
-            mDragView.move((int)ev.getRawX(), (int)ev.getRawY());
+            if (mDragView != null) {
+                mDragView.move((int)ev.getRawX(), (int)ev.getRawY());
+            }
             // Drop on someone?
             final int[] coordinates = mCoordinatesTemp;
             DropTarget dropTarget = findDropTarget(screenX, screenY, coordinates);
@@ -452,22 +597,15 @@ public class DragController {
     }
 
     private DropTarget findDropTarget(float x, float y, int[] dropCoordinates) {
-        final Rect r = mRectTemp;
-
-        final ArrayList<DropTarget> dropTargets = mDropTargets;
-        final int count = dropTargets.size();
-        for (int i=count-1; i>=0; i--) {
-            final DropTarget target = dropTargets.get(i);
-            target.getHitRect(r);
-            target.getLocationOnScreen(dropCoordinates);
-            r.offset(dropCoordinates[0] - target.getLeft(), dropCoordinates[1] - target.getTop());
-            if (r.contains((int)x, (int)y)) {
-                dropCoordinates[0] = (int) x - dropCoordinates[0];
-                dropCoordinates[1] = (int) y - dropCoordinates[1];
-                return target;
-            }
-        }
-        return null;
+        return mDropTargets.find((int) x, (int) y, dropCoordinates);
+    }
+
+    /**
+     * Marks the drop target bounds stale. Call this when a target moves during a drag without
+     * a layout or scroll, for instance by animation.
+     */
+    public void invalidateDropTargets() {
+        mDropTargets.invalidate();
     }
 
     /**
@@ -492,6 +630,14 @@ public class DragController {
         }
     }
 
+    /**
+     * Returns the event time of the last touch event handled while dragging,
+     * in the {@link android.os.SystemClock#uptimeMillis()} time base.
+     */
+    public long getLastMotionEventTime() {
+        return mLastMotionEventTime;
+    }
+
     public void setWindowToken(IBinder token) {
         mWindowToken = token;
     }
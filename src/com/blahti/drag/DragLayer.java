@@ -130,10 +130,21 @@ public void onDrop(DragSource source, int x, int y, int xOffset, int yOffset,
 {
     View v = (View) dragInfo;
 
+    moveChild(v, x - xOffset, y - yOffset);
+}
+
+/**
+ * Moves a child to the given position in this layer. Subclasses can override this
+ * to move children without a layout pass.
+ * 
+ * @param v The child
+ * @param left New left edge
+ * @param top New top edge
+ */
+protected void moveChild(View v, int left, int top)
+{
     int w = v.getWidth ();
     int h = v.getHeight ();
-    int left = x - xOffset;
-    int top = y - yOffset;
     DragLayer.LayoutParams lp = new DragLayer.LayoutParams (w, h, left, top);
     this.updateViewLayout(v, lp);
 }
@@ -148,12 +159,7 @@ public void onDragOver(DragSource source, int x, int y, int xOffset, int yOffset
 {
 	 View v = (View) dragInfo;
 
-	    int w = v.getWidth ();
-	    int h = v.getHeight ();
-	    int left = x - xOffset;
-	    int top = y - yOffset;
-	    DragLayer.LayoutParams lp = new DragLayer.LayoutParams (w, h, left, top);
-	    this.updateViewLayout(v, lp);
+	 moveChild(v, x - xOffset, y - yOffset);
 }
 
 public void onDragExit(DragSource source, int x, int y, int xOffset, int yOffset,
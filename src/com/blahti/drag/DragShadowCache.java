@@ -0,0 +1,250 @@
+/*
+ * This is a modified version of a class from the Android
+ * Open Source Project. The original copyright and license information follows.
+ * 
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.blahti.drag;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.view.View;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps drag shadows between drags, so dragging the same view again doesn't snapshot and
+ * scale it again.
+ *
+ * Shadows are keyed by the source view and the scale they were drawn at, and dropped when the
+ * view is collected or its size changes. Call {@link #invalidate} when a view's look changes
+ * some other way. The cache holds at most {@link #getMaxBytes} of pixels, evicting the least
+ * recently used shadow first.
+ *
+ * The cache owns its bitmaps. A shadow being shown is never recycled, only dropped, so a
+ * {@link DragView} can keep drawing it.
+ *
+ * Must be used on the UI thread.
+ */
+public class DragShadowCache {
+
+    /** Default pixel budget. */
+    public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    /** Shadows by source view. One per view, the last scale it was dragged at. */
+    private final WeakHashMap<View, Entry> mEntries = new WeakHashMap<View, Entry>();
+
+    /** Max bytes of pixels held. */
+    private int mMaxBytes;
+
+    /** The shadow of the current drag, null between drags. */
+    private Bitmap mInUse;
+
+    /** Use counter, orders entries for eviction. */
+    private long mClock = 0;
+
+    /** Lookups that found a shadow, and ones that didn't. */
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+
+
+    public DragShadowCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes Max bytes of pixels to hold
+     */
+    public DragShadowCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the shadow of the view at the given scale, or null if it has to be drawn.
+     *
+     * @param v The source view
+     * @param scale The scale the shadow is drawn at
+     */
+    public Bitmap get(View v, float scale) {
+        Entry entry = mEntries.get(v);
+
+        if (entry == null || entry.scale != scale
+                || entry.width != v.getWidth() || entry.height != v.getHeight()
+                || entry.bitmap.isRecycled()) {
+            mMissCount++;
+            return null;
+        }
+
+        entry.lastUse = ++mClock;
+        mHitCount++;
+        return entry.bitmap;
+    }
+
+    /**
+     * Adds a shadow. The cache takes ownership of the bitmap if it accepts it.
+     *
+     * @param v The source view
+     * @param scale The scale the shadow is drawn at
+     * @param shadow The shadow
+     * @return False if the shadow is larger than the whole budget, and the caller still owns it
+     */
+    public boolean put(View v, float scale, Bitmap shadow) {
+        int bytes = getBytes(shadow);
+        if (bytes > mMaxBytes) {
+            return false;
+        }
+
+        Entry old = mEntries.remove(v);
+        if (old != null) {
+            release(old.bitmap);
+        }
+
+        Entry entry = new Entry();
+        entry.bitmap = shadow;
+        entry.scale = scale;
+        entry.width = v.getWidth();
+        entry.height = v.getHeight();
+        entry.lastUse = ++mClock;
+        mEntries.put(v, entry);
+
+        trimToBytes(mMaxBytes);
+        return true;
+    }
+
+    /**
+     * Marks the shadow a drag is showing. It won't be recycled, even if it's evicted.
+     * Pass null when the drag ends.
+     */
+    public void setInUse(Bitmap shadow) {
+        mInUse = shadow;
+    }
+
+    /**
+     * Drops the shadow of a view, for when it looks different.
+     */
+    public void invalidate(View v) {
+        Entry entry = mEntries.remove(v);
+        if (entry != null) {
+            release(entry.bitmap);
+        }
+    }
+
+    /**
+     * Drops all shadows.
+     */
+    public void clear() {
+        trimToBytes(0);
+    }
+
+    /**
+     * Drops shadows for the given ComponentCallbacks2 trim level.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            trimToBytes(mMaxBytes / 2);
+        }
+    }
+
+    /**
+     * Sets the pixel budget, evicting shadows over it.
+     */
+    public void setMaxBytes(int maxBytes) {
+        mMaxBytes = maxBytes;
+        trimToBytes(maxBytes);
+    }
+
+    public int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Returns the bytes of pixels held.
+     */
+    public int getSizeBytes() {
+        int bytes = 0;
+        for (Entry entry : mEntries.values()) {
+            bytes += getBytes(entry.bitmap);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of shadows held.
+     */
+    public int getSize() {
+        return mEntries.size();
+    }
+
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Evicts least recently used shadows until the cache fits the given size.
+     */
+    private void trimToBytes(int maxBytes) {
+        int bytes = getSizeBytes();
+
+        while (!mEntries.isEmpty() && (bytes > maxBytes || maxBytes <= 0)) {
+            // Hold the key, the map only references it weakly
+            View oldestView = null;
+            Entry evicted = null;
+            for (Map.Entry<View, Entry> candidate : mEntries.entrySet()) {
+                if (evicted == null || candidate.getValue().lastUse < evicted.lastUse) {
+                    oldestView = candidate.getKey();
+                    evicted = candidate.getValue();
+                }
+            }
+
+            if (evicted == null) {
+                // The remaining views were collected during the scan
+                break;
+            }
+
+            mEntries.remove(oldestView);
+            bytes -= getBytes(evicted.bitmap);
+            release(evicted.bitmap);
+        }
+    }
+
+    private void release(Bitmap shadow) {
+        if (shadow != mInUse) {
+            shadow.recycle();
+        }
+    }
+
+    /**
+     * Bitmap.getByteCount needs Honeycomb MR1.
+     */
+    private static int getBytes(Bitmap bitmap) {
+        return bitmap.isRecycled() ? 0 : bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static class Entry {
+        Bitmap bitmap;
+        float scale;
+        int width;
+        int height;
+        long lastUse;
+    }
+}
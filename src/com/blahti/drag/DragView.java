@@ -44,6 +44,7 @@ public class DragView extends View
     private static final int DRAG_SCALE = 0;   // In Launcher, value is 40
 
     private Bitmap mBitmap;
+    private boolean mRecycleBitmap;
     private Paint mPaint;
     private int mRegistrationX;
     private int mRegistrationY;
@@ -68,21 +69,61 @@ public class DragView extends View
     public DragView(Context context, Bitmap bitmap, int registrationX, int registrationY,
             int left, int top, int width, int height) {
         super(context);
+        init(context, createShadow(bitmap, left, top, width, height), registrationX, registrationY);
 
+        // The shadow is the caller's bitmap when there's nothing to scale
+        mRecycleBitmap = mBitmap != bitmap;
+    }
+
+    /**
+     * Construct the drag view from a shadow that's already scaled, see {@link #createShadow}.
+     *
+     * @param context A context
+     * @param shadow The scaled image of the view that we're dragging around.
+     * @param registrationX The x coordinate of the registration point.
+     * @param registrationY The y coordinate of the registration point.
+     * @param recycleShadow Whether to recycle the shadow when the view goes away. Pass false
+     *        for shadows owned by a {@link DragShadowCache}.
+     */
+    public DragView(Context context, Bitmap shadow, int registrationX, int registrationY,
+            boolean recycleShadow) {
+        super(context);
+        init(context, shadow, registrationX, registrationY);
+        mRecycleBitmap = recycleShadow;
+    }
+
+    private void init(Context context, Bitmap shadow, int registrationX, int registrationY) {
         // mWindowManager = WindowManagerImpl.getDefault();
         mWindowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);        
-  
-        Matrix scale = new Matrix();
-        float scaleFactor = width;
-        scaleFactor = mScale = (scaleFactor + DRAG_SCALE) / scaleFactor;
-        scale.setScale(scaleFactor, scaleFactor);
-        mBitmap = Bitmap.createBitmap(bitmap, left, top, width, height, scale, true);
+
+        mBitmap = shadow;
+        mScale = shadow.getWidth() / (float) (shadow.getWidth() - DRAG_SCALE);
 
         // The point in our scaled bitmap that the touch events are located
         mRegistrationX = registrationX + (DRAG_SCALE / 2);
         mRegistrationY = registrationY + (DRAG_SCALE / 2);
     }
 
+    /**
+     * Returns the scale a drag shadow of the given width is drawn at.
+     *
+     * @param width Width of the region being dragged
+     */
+    public static float getShadowScale(int width) {
+        return (width + DRAG_SCALE) / (float) width;
+    }
+
+    /**
+     * Scales a region of a view's bitmap up to the drag shadow size. The result may be the
+     * bitmap itself when no scaling is needed.
+     */
+    public static Bitmap createShadow(Bitmap bitmap, int left, int top, int width, int height) {
+        Matrix scale = new Matrix();
+        float scaleFactor = getShadowScale(width);
+        scale.setScale(scaleFactor, scaleFactor);
+        return Bitmap.createBitmap(bitmap, left, top, width, height, scale, true);
+    }
+
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         setMeasuredDimension(mBitmap.getWidth(), mBitmap.getHeight());
@@ -110,7 +151,9 @@ public class DragView extends View
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
-        mBitmap.recycle();
+        if (mRecycleBitmap) {
+            mBitmap.recycle();
+        }
     }
 
     public void setPaint(Paint paint) {
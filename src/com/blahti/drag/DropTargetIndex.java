@@ -0,0 +1,238 @@
+/*
+ * This is a modified version of a class from the Android
+ * Open Source Project. The original copyright and license information follows.
+ * 
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.blahti.drag;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+
+/**
+ * Hit tests drop targets by screen position.
+ *
+ * The screen bounds of all targets are measured once and bucketed into a uniform grid, so a
+ * lookup only checks the targets overlapping the touched cell. The bounds stay valid until
+ * {@link #invalidate} is called, which the owner does when the targets lay out or scroll.
+ *
+ * Targets registered later win over earlier ones where they overlap, as they always have.
+ *
+ * Must be used on the UI thread.
+ */
+public class DropTargetIndex {
+
+    /** Smallest grid cell, in pixels. */
+    private static final int MIN_CELL_SIZE = 64;
+
+    /** Max cells along the longer side of the targets' bounds. */
+    private static final int MAX_CELLS_PER_SIDE = 16;
+
+    /** Registered targets, in registration order. */
+    private final ArrayList<DropTarget> mTargets = new ArrayList<DropTarget>();
+
+    /** Whether the bounds and grid match the targets. */
+    private boolean mValid = false;
+
+    /** Screen bounds of each target, by index. */
+    private Rect[] mBounds = new Rect[0];
+
+    /** The grid. Cells list the indexes of the targets overlapping them, ascending. */
+    private int mOriginX;
+    private int mOriginY;
+    private int mCellSize;
+    private int mColumns;
+    private int mRows;
+    private int[][] mCells = new int[0][];
+    private int[] mCellCounts = new int[0];
+
+    /** Number of times the bounds were measured. */
+    private long mRebuildCount = 0;
+
+    // temporaries to avoid gc thrash
+    private final Rect mRectTemp = new Rect();
+    private final int[] mLocationTemp = new int[2];
+
+
+    public void add(DropTarget target) {
+        mTargets.add(target);
+        mValid = false;
+    }
+
+    public void remove(DropTarget target) {
+        mTargets.remove(target);
+        mValid = false;
+    }
+
+    public int getSize() {
+        return mTargets.size();
+    }
+
+    /**
+     * Marks the cached bounds stale. They're measured again on the next lookup.
+     */
+    public void invalidate() {
+        mValid = false;
+    }
+
+    public boolean isValid() {
+        return mValid;
+    }
+
+    /**
+     * Returns the number of times the target bounds were measured.
+     */
+    public long getRebuildCount() {
+        return mRebuildCount;
+    }
+
+    /**
+     * Finds the target under a screen position.
+     *
+     * @param x Screen x
+     * @param y Screen y
+     * @param dropCoordinates Set to the position relative to the target found
+     * @return The target, or null if there's none there
+     */
+    public DropTarget find(int x, int y, int[] dropCoordinates) {
+        if (!mValid) {
+            rebuild();
+        }
+
+        if (mColumns == 0 || x < mOriginX || y < mOriginY) {
+            return null;
+        }
+
+        int column = (x - mOriginX) / mCellSize;
+        int row = (y - mOriginY) / mCellSize;
+        if (column >= mColumns || row >= mRows) {
+            return null;
+        }
+
+        int cell = row * mColumns + column;
+        int[] indexes = mCells[cell];
+        for (int i = mCellCounts[cell] - 1; i >= 0; i--) {
+            Rect bounds = mBounds[indexes[i]];
+            if (bounds.contains(x, y)) {
+                dropCoordinates[0] = x - bounds.left;
+                dropCoordinates[1] = y - bounds.top;
+                return mTargets.get(indexes[i]);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Measures the screen bounds of the targets and buckets them into the grid.
+     */
+    private void rebuild() {
+        final int count = mTargets.size();
+        final Rect r = mRectTemp;
+        final int[] location = mLocationTemp;
+
+        if (mBounds.length < count) {
+            Rect[] bounds = new Rect[count];
+            System.arraycopy(mBounds, 0, bounds, 0, mBounds.length);
+            for (int i = mBounds.length; i < count; i++) {
+                bounds[i] = new Rect();
+            }
+            mBounds = bounds;
+        }
+
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int bottom = Integer.MIN_VALUE;
+
+        for (int i = 0; i < count; i++) {
+            DropTarget target = mTargets.get(i);
+            target.getHitRect(r);
+            target.getLocationOnScreen(location);
+            // The screen location already includes any translation of the target
+            r.offsetTo(location[0], location[1]);
+            mBounds[i].set(r);
+
+            left = Math.min(left, r.left);
+            top = Math.min(top, r.top);
+            right = Math.max(right, r.right);
+            bottom = Math.max(bottom, r.bottom);
+        }
+
+        mValid = true;
+        mRebuildCount++;
+
+        if (count == 0 || right <= left || bottom <= top) {
+            mColumns = 0;
+            mRows = 0;
+            return;
+        }
+
+        int span = Math.max(right - left, bottom - top);
+        mCellSize = Math.max(MIN_CELL_SIZE, (span + MAX_CELLS_PER_SIDE - 1) / MAX_CELLS_PER_SIDE);
+        mOriginX = left;
+        mOriginY = top;
+        mColumns = (right - left - 1) / mCellSize + 1;
+        mRows = (bottom - top - 1) / mCellSize + 1;
+
+        int cells = mColumns * mRows;
+        if (mCells.length < cells) {
+            int[][] grown = new int[cells][];
+            System.arraycopy(mCells, 0, grown, 0, mCells.length);
+            mCells = grown;
+            mCellCounts = new int[cells];
+        }
+        for (int i = 0; i < cells; i++) {
+            mCellCounts[i] = 0;
+        }
+
+        for (int i = 0; i < count; i++) {
+            Rect bounds = mBounds[i];
+            if (bounds.isEmpty()) {
+                continue;
+            }
+
+            int firstColumn = (bounds.left - mOriginX) / mCellSize;
+            int lastColumn = (bounds.right - 1 - mOriginX) / mCellSize;
+            int firstRow = (bounds.top - mOriginY) / mCellSize;
+            int lastRow = (bounds.bottom - 1 - mOriginY) / mCellSize;
+
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    append(row * mColumns + column, i);
+                }
+            }
+        }
+    }
+
+    private void append(int cell, int index) {
+        int[] indexes = mCells[cell];
+        int size = mCellCounts[cell];
+
+        if (indexes == null || indexes.length == size) {
+            int[] grown = new int[(size == 0) ? 4 : size * 2];
+            if (indexes != null) {
+                System.arraycopy(indexes, 0, grown, 0, size);
+            }
+            indexes = grown;
+            mCells[cell] = indexes;
+        }
+
+        indexes[size] = index;
+        mCellCounts[cell] = size + 1;
+    }
+}
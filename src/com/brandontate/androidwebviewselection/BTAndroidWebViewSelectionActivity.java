@@ -17,6 +17,7 @@
 package com.brandontate.androidwebviewselection;
 
 import android.app.Activity;
+import android.os.Build;
 import android.os.Bundle;
 
 public class BTAndroidWebViewSelectionActivity extends Activity {
@@ -25,5 +26,13 @@ public class BTAndroidWebViewSelectionActivity extends Activity {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
+
+        // Any page works, the selection runtime is injected once it loads
+        BTWebView webView = (BTWebView) findViewById(R.id.webView);
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+            webView.loadUrl(WebResourceServer.ASSETS_URL + "content.html");
+        else
+            // No request interception before Honeycomb
+            webView.loadUrl("file:///android_asset/content.html");
     }
 }
\ No newline at end of file
@@ -18,36 +18,37 @@ package com.brandontate.androidwebviewselection;
 
 import java.util.Locale;
 
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
 import android.webkit.WebViewClient;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import com.blahti.drag.DragController;
-import com.blahti.drag.DragLayer;
 import com.blahti.drag.DragListener;
 import com.blahti.drag.DragSource;
-import com.blahti.drag.MyAbsoluteLayout;
 
 import net.londatiga.android.ActionItem;
 import net.londatiga.android.QuickAction;
 import net.londatiga.android.QuickAction.OnDismissListener;
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
 import android.graphics.Rect;
 import android.graphics.Region;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
 import android.util.AttributeSet;
-import android.util.DisplayMetrics;
 import android.util.Log;
-import android.view.Display;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
 import android.view.View.OnLongClickListener;
 import android.view.ViewGroup;
-import android.view.WindowManager;
 import android.webkit.WebView;
 import android.widget.ImageView;
 
@@ -57,23 +58,68 @@ import android.widget.ImageView;
  * @author Brandon Tate
  */
 public class BTWebView extends WebView implements TextSelectionJavascriptInterfaceListener,
-        OnTouchListener, OnLongClickListener, OnDismissListener, DragListener{
+        OnTouchListener, OnLongClickListener, OnDismissListener, DragListener, DragUpdateScheduler.Listener{
 
     /** The logging tag. */
     private static final String TAG = "BTWebView";
 
+    /** Max characters of selected text fetched when a drag ends. */
+    public static final int DEFAULT_MAX_SELECTED_TEXT_LENGTH = 16 * 1024;
+
+    /** How long after a page finishes loading commands are held for the runtime, in milliseconds. */
+    protected static final long RUNTIME_READY_TIMEOUT = 5000;
+
+    /**
+     * Receives selected text fetched with {@link BTWebView#requestSelectedText}.
+     */
+    public interface OnSelectedTextListener {
+
+        /**
+         * Called on the UI thread with the requested text.
+         * @param text The text, or null if it couldn't be read
+         */
+        public abstract void onSelectedText(String text);
+    }
+
+    /**
+     * Receives the serialized range fetched with {@link BTWebView#requestSelectedRange}.
+     */
+    public interface OnSelectedRangeListener {
+
+        /**
+         * Called on the UI thread with the rangy serialized range.
+         * @param range The range, or null if there's no selection
+         */
+        public abstract void onSelectedRange(String range);
+    }
+
     /** Context. */
     protected	Context mContext;
 
     /** The context menu. */
     protected QuickAction mContextMenu;
 
-    /** The drag layer for selection. */
-    protected DragLayer mSelectionDragLayer;
+    /** The drag layer for selection, created on first selection. */
+    protected SelectionHandleLayer mSelectionDragLayer;
 
-    /** The drag controller for selection. */
+    /** The drag controller for selection, created with the drag layer. */
     protected DragController mDragController;
 
+    /** Coalesces handle drag updates to one page call per frame. */
+    protected DragUpdateScheduler mDragUpdateScheduler;
+
+    /** Sends selection commands to the page with flow control. */
+    protected JavascriptCommandPipeline mCommandPipeline;
+
+    /** Installs the selection runtime into loaded pages. */
+    protected SelectionRuntimeInjector mRuntimeInjector;
+
+    /** Serves app content to the page through request interception. */
+    protected WebResourceServer mResourceServer;
+
+    /** Url of the page being loaded or shown, read on the web view's IO thread. */
+    protected volatile String mPageUrl;
+
 
     /** The selection bounds. */
     protected Rect mSelectionBounds = null;
@@ -81,12 +127,27 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
     /** The previously selected region. */
     protected Region mLastSelectedRegion = null;
 
-    /** The selected range. */
-    protected String mSelectedRange = "";
+    /** The last serialized range fetched from the page. */
+    protected String mSelectedRange = null;
+
+    /** Sequence number of the selection mSelectedRange describes, -1 when there's none. */
+    protected long mSelectedRangeSequence = -1;
 
-    /** The selected text. */
+    /** Pending serialized range requests by id. */
+    protected SparseArray<OnSelectedRangeListener> mSelectedRangeRequests = new SparseArray<OnSelectedRangeListener>();
+
+    /** The selected text, as of the last drag end. */
     protected String mSelectedText = "";
 
+    /** Length of the current selection in characters, -1 while a drag leaves it unmeasured. */
+    protected int mSelectedTextLength = 0;
+
+    /** Pending selected text requests by id. */
+    protected SparseArray<OnSelectedTextListener> mSelectedTextRequests = new SparseArray<OnSelectedTextListener>();
+
+    /** Id of the last selected text request. */
+    protected int mSelectedTextRequestId = 0;
+
     /** Javascript interface for catching text selection. */
     protected TextSelectionJavascriptInterface mTextSelectionJSInterface = null;
 
@@ -105,6 +166,33 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
     /** The current scale of the web view. */
     protected float mCurrentScale = 1.0f;
 
+    /** Sequence number of the last command that can change the selection. */
+    protected long mCommandSequence = 0;
+
+    /** Sequence number of the selection update last applied, -1 once the selection is cleared. */
+    protected long mAppliedSequence = 0;
+
+    /** Touch to handle latency instrumentation. */
+    protected SelectionMetrics mSelectionMetrics = new SelectionMetrics();
+
+    /** Cached page, view and screen coordinate transform. */
+    protected CoordinateSpace mCoordinateSpace = new CoordinateSpace();
+
+    /** Reused decoder for selection updates from the page. */
+    protected SelectionPayload mSelectionPayload = new SelectionPayload();
+
+    /** Reused context menu anchor. */
+    protected Rect mContextMenuBounds = new Rect();
+
+    /** Actions run from context menu items, by action id. */
+    protected SparseArray<SelectionAction> mSelectionActions = new SparseArray<SelectionAction>();
+
+    /** Runs selection actions and cancels them when the selection goes away. */
+    protected SelectionActionExecutor mActionExecutor = new SelectionActionExecutor();
+
+    /** Action ids waiting on a selection snapshot, by request id. */
+    protected SparseIntArray mSelectionActionRequests = new SparseIntArray();
+
 
     //*****************************************************
     //*
@@ -168,20 +256,24 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
     @Override
     public boolean onTouch(View v, MotionEvent event) {
 
-        float xPoint = getDensityIndependentValue(event.getX(), mContext) / getDensityIndependentValue(getScale(), mContext);
-        float yPoint = getDensityIndependentValue(event.getY(), mContext) / getDensityIndependentValue(getScale(), mContext);
+        // onScaleChanged isn't called on pinch on every version, so sync the scale once per gesture
+        if(event.getAction() == MotionEvent.ACTION_DOWN){
+            mCoordinateSpace.setScale(getScale());
+        }
+
+        float xPoint = mCoordinateSpace.viewToPage(event.getX());
+        float yPoint = mCoordinateSpace.viewToPage(event.getY());
 
         if(event.getAction() == MotionEvent.ACTION_DOWN){
 
-            String startTouchUrl = String.format(Locale.US, "javascript:android.selection.startTouch(%f, %f);",
-                    xPoint, yPoint);
+            long sequence = ++mCommandSequence;
+            String startTouch = String.format(Locale.US, "android.selection.startTouch(%f, %f, %d);",
+                    xPoint, yPoint, sequence);
 
             mLastTouchX = xPoint;
             mLastTouchY = yPoint;
 
-            Log.i(TAG, "scale " + getScale());
-
-            loadUrl(startTouchUrl);
+            mCommandPipeline.submit(JavascriptCommandPipeline.COMMAND_START_TOUCH, startTouch, sequence);
 
             // Flag scrolling for first touch
             //mScrolling = !isInSelectionMode();
@@ -225,7 +317,9 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
 
         // Tell the javascript to handle this if not in selection mode
         if(!isInSelectionMode()){
-            loadUrl("javascript:android.selection.longTouch();");
+            long sequence = ++mCommandSequence;
+            mCommandPipeline.submit(JavascriptCommandPipeline.COMMAND_LONG_TOUCH,
+                    "android.selection.longTouch(" + sequence + ");", sequence);
             mScrolling = true;
         }
 
@@ -255,6 +349,10 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
         setOnTouchListener(this);
 
 
+        // Coordinate transform
+        mCoordinateSpace.setDisplayMetrics(getResources().getDisplayMetrics());
+        mCoordinateSpace.setScale(getScale());
+
         // Webview setup
         getSettings().setJavaScriptEnabled(true);
         getSettings().setJavaScriptCanOpenWindowsAutomatically(true);
@@ -269,6 +367,52 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
             public void onScaleChanged(WebView view, float oldScale, float newScale) {
                 super.onScaleChanged(view, oldScale, newScale);
                 mCurrentScale = newScale;
+                mCoordinateSpace.setScale(newScale);
+            }
+
+            @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+                WebResourceResponse response = mResourceServer.serve(request.getUrl().toString(),
+                        request.isForMainFrame() ? null : mPageUrl);
+                return (response != null) ? response : super.shouldInterceptRequest(view, request);
+            }
+
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+                WebResourceResponse response = mResourceServer.serve(url, mPageUrl);
+                return (response != null) ? response : super.shouldInterceptRequest(view, url);
+            }
+
+            @Override
+            public void onPageStarted(WebView view, String url, Bitmap favicon) {
+                super.onPageStarted(view, url, favicon);
+                // Pages loaded from data report a placeholder, keep the base url they were given
+                if(url != null && !url.startsWith("data:") && !url.equals("about:blank"))
+                    mPageUrl = url;
+                mRuntimeInjector.reset();
+                // Callbacks for commands sent to the old page may never come
+                mCommandPipeline.reset();
+                // Hold commands until the runtime is in the new page
+                mCommandPipeline.setHeld(true);
+                removeCallbacks(mRuntimeReadyTimeout);
+                mTextSelectionJSInterface.clearPendingEvents();
+                cancelSelectionRequests();
+            }
+
+            @Override
+            public void onPageFinished(WebView view, String url) {
+                super.onPageFinished(view, url);
+
+                if(!mRuntimeInjector.inject(url)){
+                    Log.e(TAG, "No selection runtime for " + url + ", releasing commands");
+                    mCommandPipeline.setHeld(false);
+                    return;
+                }
+
+                // Don't hold commands forever if the page never reports in
+                removeCallbacks(mRuntimeReadyTimeout);
+                postDelayed(mRuntimeReadyTimeout, RUNTIME_READY_TIMEOUT);
             }
         });
 
@@ -278,13 +422,28 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
         //getSettings().setLoadWithOverviewMode(true);
         //getSettings().setUseWideViewPort(true);
 
+        // App content, served without going through the heap. Any page gets the runtime.
+        mResourceServer = new WebResourceServer(context);
+        mResourceServer.addPublicAsset(SelectionRuntimeInjector.RUNTIME_ASSET);
+
+        // Selection runtime, installed into each page as it loads
+        mRuntimeInjector = new SelectionRuntimeInjector(this);
+        mRuntimeInjector.setSelectionMetrics(mSelectionMetrics);
+
         // Javascript interfaces
         mTextSelectionJSInterface = new TextSelectionJavascriptInterface(context, this);
+        mTextSelectionJSInterface.setSelectionMetrics(mSelectionMetrics);
         addJavascriptInterface(mTextSelectionJSInterface, mTextSelectionJSInterface.getInterfaceName());
 
 
-        // Create the selection handles
-        createSelectionLayer(context);
+        // Frame aligned drag updates
+        mDragUpdateScheduler = new DragUpdateScheduler(this);
+
+        // Javascript command flow control
+        mCommandPipeline = new JavascriptCommandPipeline(this, JavascriptCommandPipeline.DEFAULT_MAX_IN_FLIGHT);
+        mCommandPipeline.setSelectionMetrics(mSelectionMetrics);
+        // Nothing can run until a page has the runtime
+        mCommandPipeline.setHeld(true);
 
 
         // Set to the empty region
@@ -292,13 +451,63 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
         region.setEmpty();
         mLastSelectedRegion = region;
 
-        // Load up the android asset file
-        String filePath = "file:///android_asset/content.html";
+    }
+
+
+    //*****************************************************
+    //*
+    //*		Coordinate Space
+    //*
+    //*****************************************************
+
+    @Override
+    protected void onScrollChanged(int l, int t, int oldl, int oldt) {
+        super.onScrollChanged(l, t, oldl, oldt);
+
+        // Can be called by the super constructor
+        if(mCoordinateSpace != null)
+            mCoordinateSpace.setScroll(l, t);
+
+        // Keep the overlay over the viewport and the handles over the selection
+        if(isInSelectionMode()){
+            mSelectionDragLayer.setScroll(l, t);
+            if(!mDragging)
+                positionSelectionHandles();
+        }
+    }
 
-        // Load the url
-        this.loadUrl(filePath);
+    @Override
+    protected void onSizeChanged(int w, int h, int ow, int oh) {
+        super.onSizeChanged(w, h, ow, oh);
 
+        if(mCoordinateSpace != null)
+            mCoordinateSpace.setScreenLocation(this);
 
+        if(isInSelectionMode())
+            sizeSelectionLayer();
+    }
+
+    @Override
+    protected void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+
+        if(mContextMenu != null)
+            mContextMenu.onConfigurationChanged();
+
+        if(mCoordinateSpace == null)
+            return;
+
+        mCoordinateSpace.setDisplayMetrics(getResources().getDisplayMetrics());
+        mCoordinateSpace.setScale(getScale());
+        mCoordinateSpace.setScreenLocation(this);
+    }
+
+    /**
+     * Returns the coordinate transform used by the touch, drag and selection paths.
+     * @return
+     */
+    public CoordinateSpace getCoordinateSpace(){
+        return mCoordinateSpace;
     }
 
 
@@ -308,6 +517,16 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
     //*
     //*****************************************************
 
+    /**
+     * Creates the selection layer, if it hasn't been yet. Most page views never select
+     * anything, so this waits for the first selection.
+     */
+    public void ensureSelectionLayer(){
+
+        if(mSelectionDragLayer == null)
+            createSelectionLayer(mContext);
+    }
+
     /**
      * Creates the selection layer.
      *
@@ -316,12 +535,14 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
     protected void createSelectionLayer(Context context){
 
         LayoutInflater inflater = (LayoutInflater)context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        mSelectionDragLayer = (DragLayer) inflater.inflate(R.layout.selection_drag_layer, null);
+        mSelectionDragLayer = (SelectionHandleLayer) inflater.inflate(R.layout.selection_drag_layer, null);
 
 
         // Make sure it's filling parent
         mDragController = new DragController(context);
         mDragController.setDragListener(this);
+        // The handles are the drag image, moved by the layer
+        mDragController.setDragMode(DragController.DRAG_MODE_IN_WINDOW);
         mDragController.addDropTarget(mSelectionDragLayer);
         mSelectionDragLayer.setDragController(mDragController);
 
@@ -367,25 +588,33 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
 
         public void handleMessage(Message m){
 
-            if(mSelectionBounds == null)
+            if(mSelectionBounds == null || mSelectionDragLayer == null)
                 return;
 
             addView(mSelectionDragLayer);
+            sizeSelectionLayer();
+            mSelectionDragLayer.setScroll(getScrollX(), getScrollY());
 
             drawSelectionHandles();
 
+        }
 
-            int contentHeight = (int) Math.ceil(getDensityDependentValue(getContentHeight(), mContext));
+    };
 
-            // Update Layout Params
-            ViewGroup.LayoutParams layerParams = mSelectionDragLayer.getLayoutParams();
-            layerParams.height = contentHeight;
-            layerParams.width = mContentWidth;
-            mSelectionDragLayer.setLayoutParams(layerParams);
+    /**
+     * Sizes the selection layer to the viewport. The layer follows the scroll, so it never
+     * needs to cover the whole content.
+     */
+    private void sizeSelectionLayer(){
 
-        }
+        ViewGroup.LayoutParams layerParams = mSelectionDragLayer.getLayoutParams();
+        if(layerParams.width == getWidth() && layerParams.height == getHeight())
+            return;
 
-    };
+        layerParams.width = getWidth();
+        layerParams.height = getHeight();
+        mSelectionDragLayer.setLayoutParams(layerParams);
+    }
 
     /**
      * Starts selection mode.
@@ -414,8 +643,21 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
             }
             mSelectionBounds = null;
             mLastTouchedSelectionHandle = -1;
-            loadUrl("javascript: android.selection.clearSelection();");
-            removeView(mSelectionDragLayer);
+            mDragUpdateScheduler.cancel();
+            mSelectionMetrics.cancel();
+            mActionExecutor.cancelAll();
+            mAppliedSequence = -1;
+            mSelectedRange = null;
+            mSelectedRangeSequence = -1;
+            cancelSelectionRequests();
+
+            // A selection from a command sent before the clear mustn't bring the handles back
+            long sequence = ++mCommandSequence;
+            mTextSelectionJSInterface.discardBefore(sequence);
+            mCommandPipeline.submit(JavascriptCommandPipeline.COMMAND_CLEAR_SELECTION,
+                    "android.selection.clearSelection(" + sequence + ");", sequence);
+            if(mSelectionDragLayer != null)
+                removeView(mSelectionDragLayer);
 
         }
     };
@@ -442,28 +684,111 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
     private Handler drawSelectionHandlesHandler = new Handler(){
         public void handleMessage(Message m){
 
-            MyAbsoluteLayout.LayoutParams startParams = (MyAbsoluteLayout.LayoutParams) mStartSelectionHandle.getLayoutParams();
-            startParams.x = (int) (mSelectionBounds.left - mStartSelectionHandle.getDrawable().getIntrinsicWidth());
-            startParams.y = (int) (mSelectionBounds.top - mStartSelectionHandle.getDrawable().getIntrinsicHeight());
+            if(mSelectionBounds == null || mSelectionDragLayer == null)
+                return;
 
-            // Stay on screen.
-            startParams.x = (startParams.x < 0) ? 0 : startParams.x;
-            startParams.y = (startParams.y < 0) ? 0 : startParams.y;
+            positionSelectionHandles();
 
-            mStartSelectionHandle.setLayoutParams(startParams);
+            mSelectionMetrics.markApplied(mAppliedSequence);
 
-            MyAbsoluteLayout.LayoutParams endParams = (MyAbsoluteLayout.LayoutParams) mEndSelectionHandle.getLayoutParams();
-            endParams.x = (int) mSelectionBounds.right;
-            endParams.y = (int) mSelectionBounds.bottom;
+        }
+    };
 
-            // Stay on screen
-            endParams.x = (endParams.x < 0) ? 0 : endParams.x;
-            endParams.y = (endParams.y < 0) ? 0 : endParams.y;
+    /**
+     * Moves the handles over the selection bounds. The bounds are in content coordinates,
+     * the handles in viewport coordinates.
+     */
+    private void positionSelectionHandles(){
+
+        if(mSelectionBounds == null)
+            return;
+
+        int scrollX = getScrollX();
+        int scrollY = getScrollY();
+
+        int startX = (int) (mSelectionBounds.left - mStartSelectionHandle.getDrawable().getIntrinsicWidth());
+        int startY = (int) (mSelectionBounds.top - mStartSelectionHandle.getDrawable().getIntrinsicHeight());
+
+        // Stay on screen.
+        startX = (startX < 0) ? 0 : startX;
+        startY = (startY < 0) ? 0 : startY;
+
+        mSelectionDragLayer.moveHandle(mStartSelectionHandle, startX - scrollX, startY - scrollY);
+
+        int endX = (int) mSelectionBounds.right;
+        int endY = (int) mSelectionBounds.bottom;
+
+        // Stay on screen
+        endX = (endX < 0) ? 0 : endX;
+        endY = (endY < 0) ? 0 : endY;
+
+        mSelectionDragLayer.moveHandle(mEndSelectionHandle, endX - scrollX, endY - scrollY);
+    }
 
-            mEndSelectionHandle.setLayoutParams(endParams);
+    /**
+     * Returns the view to its just constructed state, for reuse with another page.
+     * Pending requests are dropped without calling their listeners.
+     */
+    public void resetState(){
+
+        stopLoading();
+
+        startSelectionModeHandler.removeMessages(0);
+        drawSelectionHandlesHandler.removeMessages(0);
+        endSelectionModeHandler.removeMessages(0);
+
+        // The menu's window and inflater belong to the screen the view was in, so build
+        // it again in the next one
+        if(mContextMenu != null){
+            if(mContextMenu.isShowing()){
+                try{
+                    mContextMenu.dismiss();
+                }
+                catch(Exception e){
 
+                }
+            }
+            mContextMenu = null;
         }
-    };
+        mContextMenuVisible = false;
+
+        if(isInSelectionMode())
+            removeView(mSelectionDragLayer);
+
+        mSelectionBounds = null;
+        mLastTouchedSelectionHandle = -1;
+        mDragging = false;
+        mScrolling = false;
+
+        mDragUpdateScheduler.cancel();
+        mActionExecutor.cancelAll();
+        mCommandPipeline.reset();
+        mSelectionMetrics.cancel();
+        mTextSelectionJSInterface.clearPendingEvents();
+        mRuntimeInjector.reset();
+        removeCallbacks(mRuntimeReadyTimeout);
+
+        // The layer and handles are inflated with the screen's context, so drop them too.
+        // The next selection creates them in whatever context the view is in then.
+        if(mDragController != null){
+            mDragController.removeDragListener(this);
+            mDragController.cancelDrag();
+            mDragController.getShadowCache().clear();
+            mDragController = null;
+        }
+        mSelectionDragLayer = null;
+        mStartSelectionHandle = null;
+        mEndSelectionHandle = null;
+
+        mAppliedSequence = -1;
+        mSelectedRange = null;
+        mSelectedRangeSequence = -1;
+        mSelectedText = "";
+        mSelectedTextLength = 0;
+        mSelectedTextRequests.clear();
+        mSelectedRangeRequests.clear();
+        mSelectionActionRequests.clear();
+    }
 
     /**
      * Checks to see if this view is in selection mode.
@@ -471,7 +796,7 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
      */
     public boolean isInSelectionMode(){
 
-        return mSelectionDragLayer.getParent() != null;
+        return mSelectionDragLayer != null && mSelectionDragLayer.getParent() != null;
 
 
     }
@@ -515,67 +840,157 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
 
 	@Override
 	public void onDrag() {
-		// TODO Auto-generated method stub
 
-        MyAbsoluteLayout.LayoutParams startHandleParams = (MyAbsoluteLayout.LayoutParams) mStartSelectionHandle.getLayoutParams();
-        MyAbsoluteLayout.LayoutParams endHandleParams = (MyAbsoluteLayout.LayoutParams) mEndSelectionHandle.getLayoutParams();
+        mSelectionMetrics.markTouch(mDragController.getLastMotionEventTime());
+        postHandlePosition();
+	}
+	
+    @Override
+    public void onDragEnd() {
 
-        float scale = getDensityIndependentValue(getScale(), mContext);
+        postHandlePosition();
 
-        float startX = startHandleParams.x - getScrollX();
-        float startY = startHandleParams.y - getScrollY();
-        float endX = endHandleParams.x - getScrollX();
-        float endY = endHandleParams.y - getScrollY();
+        // Always send the final position
+        mDragUpdateScheduler.flush();
 
-        startX = getDensityIndependentValue(startX, mContext) / scale;
-        startY = getDensityIndependentValue(startY, mContext) / scale;
-        endX = getDensityIndependentValue(endX, mContext) / scale;
-        endY = getDensityIndependentValue(endY, mContext) / scale;
+        // Drag updates only count the text when it's cheap, so count it once now. Sequenced
+        // like any other command that reports the selection, so it isn't dropped as stale.
+        long sequence = ++mCommandSequence;
+        mCommandPipeline.submit(JavascriptCommandPipeline.COMMAND_SCRIPT,
+                String.format(Locale.US, "android.selection.selectionChanged(true, %d);", sequence), sequence);
+
+        // Now that the selection has settled, fetch its text
+        requestSelectedText(0, DEFAULT_MAX_SELECTED_TEXT_LENGTH, mDragEndTextListener);
+
+        mDragging = false;
+
+    }
+
+    /**
+     * Queues the dragged handle's position for the next frame.
+     */
+    private void postHandlePosition(){
+
+        // Handles are positioned in the viewport
+        float startX = mCoordinateSpace.viewToPage(mSelectionDragLayer.getHandleX(mStartSelectionHandle));
+        float startY = mCoordinateSpace.viewToPage(mSelectionDragLayer.getHandleY(mStartSelectionHandle));
+        float endX = mCoordinateSpace.viewToPage(mSelectionDragLayer.getHandleX(mEndSelectionHandle));
+        float endY = mCoordinateSpace.viewToPage(mSelectionDragLayer.getHandleY(mEndSelectionHandle));
 
 
         if(mLastTouchedSelectionHandle == SELECTION_START_HANDLE && startX > 0 && startY > 0){
-            String saveStartString = String.format(Locale.US, "javascript: android.selection.setStartPos(%f, %f);", startX, startY);
-            loadUrl(saveStartString);
+            mDragUpdateScheduler.postStart(startX, startY);
         }
 
         if(mLastTouchedSelectionHandle == SELECTION_END_HANDLE && endX > 0 && endY > 0){
-            String saveEndString = String.format(Locale.US, "javascript: android.selection.setEndPos(%f, %f);", endX, endY);
-            loadUrl(saveEndString);
+            mDragUpdateScheduler.postEnd(endX, endY);
         }
-	}
-	
+    }
+
+    /**
+     * Keeps the text fetched at the end of a drag.
+     */
+    private OnSelectedTextListener mDragEndTextListener = new OnSelectedTextListener(){
+        @Override
+        public void onSelectedText(String text) {
+            mSelectedText = (text != null) ? text : "";
+        }
+    };
+
+    /**
+     * Sends the coalesced handle positions to the page, once per frame.
+     */
     @Override
-    public void onDragEnd() {
-        // TODO Auto-generated method stub
+    public void onDragUpdate(boolean hasStart, float startX, float startY,
+                             boolean hasEnd, float endX, float endY) {
 
-        MyAbsoluteLayout.LayoutParams startHandleParams = (MyAbsoluteLayout.LayoutParams) mStartSelectionHandle.getLayoutParams();
-        MyAbsoluteLayout.LayoutParams endHandleParams = (MyAbsoluteLayout.LayoutParams) mEndSelectionHandle.getLayoutParams();
+        if(hasStart){
+            long sequence = ++mCommandSequence;
+            String setStartPos = String.format(Locale.US, "android.selection.setStartPos(%f, %f, %d);", startX, startY, sequence);
+            mCommandPipeline.submit(JavascriptCommandPipeline.COMMAND_SET_START_POS, setStartPos, sequence);
+        }
 
-        float scale = getDensityIndependentValue(getScale(), mContext);
+        if(hasEnd){
+            long sequence = ++mCommandSequence;
+            String setEndPos = String.format(Locale.US, "android.selection.setEndPos(%f, %f, %d);", endX, endY, sequence);
+            mCommandPipeline.submit(JavascriptCommandPipeline.COMMAND_SET_END_POS, setEndPos, sequence);
+        }
+    }
 
-        float startX = startHandleParams.x - getScrollX();
-        float startY = startHandleParams.y - getScrollY();
-        float endX = endHandleParams.x - getScrollX();
-        float endY = endHandleParams.y - getScrollY();
+    /**
+     * Returns the number of handle drag updates that were coalesced into a later frame.
+     * @return
+     */
+    public long getCoalescedDragUpdateCount(){
+        return mDragUpdateScheduler.getCoalescedCount();
+    }
 
-        startX = getDensityIndependentValue(startX, mContext) / scale;
-        startY = getDensityIndependentValue(startY, mContext) / scale;
-        endX = getDensityIndependentValue(endX, mContext) / scale;
-        endY = getDensityIndependentValue(endY, mContext) / scale;
+    /**
+     * Returns the touch to handle latency histograms for the selection pipeline.
+     * @return
+     */
+    public SelectionMetrics getSelectionMetrics(){
+        return mSelectionMetrics;
+    }
 
+    /**
+     * Returns the number of selection updates dropped because a newer one was already applied,
+     * or they were from before the selection was cleared.
+     * @return
+     */
+    public long getDroppedSelectionUpdateCount(){
+        return mTextSelectionJSInterface.getDroppedSelectionCount();
+    }
 
-        if(mLastTouchedSelectionHandle == SELECTION_START_HANDLE && startX > 0 && startY > 0){
-            String saveStartString = String.format(Locale.US, "javascript: android.selection.setStartPos(%f, %f);", startX, startY);
-            loadUrl(saveStartString);
-        }
+    /**
+     * Returns the number of selection updates dropped because they couldn't be read.
+     * @return
+     */
+    public long getMalformedSelectionUpdateCount(){
+        return mTextSelectionJSInterface.getMalformedSelectionCount();
+    }
 
-        if(mLastTouchedSelectionHandle == SELECTION_END_HANDLE && endX > 0 && endY > 0){
-            String saveEndString = String.format(Locale.US, "javascript: android.selection.setEndPos(%f, %f);", endX, endY);
-            loadUrl(saveEndString);
-        }
+    /**
+     * Returns the selection runtime injector.
+     * @return
+     */
+    public SelectionRuntimeInjector getRuntimeInjector(){
+        return mRuntimeInjector;
+    }
 
-        mDragging = false;
+    /**
+     * Returns the resource server, for registering content directories.
+     * @return
+     */
+    public WebResourceServer getResourceServer(){
+        return mResourceServer;
+    }
+
+    /**
+     * Notes the page about to load, so the resource server can tell the app's pages from others
+     * before the load starts. Javascript urls run in the current page and leave it alone.
+     */
+    @Override
+    public void loadUrl(String url){
+
+        if(url != null && !url.startsWith("javascript:"))
+            mPageUrl = url;
 
+        super.loadUrl(url);
+    }
+
+    @Override
+    public void loadDataWithBaseURL(String baseUrl, String data, String mimeType, String encoding, String historyUrl){
+        mPageUrl = baseUrl;
+        super.loadDataWithBaseURL(baseUrl, data, mimeType, encoding, historyUrl);
+    }
+
+    /**
+     * Returns the javascript command pipeline, for queue depth and round trip metrics.
+     * @return
+     */
+    public JavascriptCommandPipeline getCommandPipeline(){
+        return mCommandPipeline;
     }
 
 
@@ -587,27 +1002,37 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
 
     /**
      * Shows the context menu using the given region as an anchor point.
+     * If it's already showing, it's moved to the new region.
      * @param displayRect
      */
     protected void showContextMenu(Rect displayRect){
 
-        // Don't show this twice
-        if(mContextMenuVisible){
-            return;
-        }
-
         // Don't use empty rect
         //if(displayRect.isEmpty()){
         if(displayRect.right <= displayRect.left){
             return;
         }
 
+        ensureContextMenu();
+
+        mContextMenuVisible = true;
+        mContextMenu.show(this, displayRect);
+    }
+
+    /**
+     * Builds the context menu the first time it's needed. It's kept until {@link #resetState}.
+     */
+    protected void ensureContextMenu(){
+
+        if(mContextMenu != null)
+            return;
+
         //Copy action item
         ActionItem buttonOne = new ActionItem();
 
         buttonOne.setTitle("Button 1");
         buttonOne.setActionId(1);
-        buttonOne.setIcon(getResources().getDrawable(R.drawable.menu_search));
+        buttonOne.setIcon(getContext(), R.drawable.menu_search);
 
 
         //Highlight action item
@@ -615,13 +1040,13 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
 
         buttonTwo.setTitle("Button 2");
         buttonTwo.setActionId(2);
-        buttonTwo.setIcon(getResources().getDrawable(R.drawable.menu_info));
+        buttonTwo.setIcon(getContext(), R.drawable.menu_info);
 
         ActionItem buttonThree = new ActionItem();
 
         buttonThree.setTitle("Button 3");
         buttonThree.setActionId(3);
-        buttonThree.setIcon(getResources().getDrawable(R.drawable.menu_eraser));
+        buttonThree.setIcon(getContext(), R.drawable.menu_eraser);
 
 
 
@@ -644,8 +1069,11 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
             @Override
             public void onItemClick(QuickAction source, int pos,
                                     int actionId) {
-                // TODO Auto-generated method stub
-                if (actionId == 1) {
+
+                if (runSelectionAction(actionId)) {
+                    // Registered actions report through the action listener
+                }
+                else if (actionId == 1) {
                     // Do Button 1 stuff
                     Log.i(TAG, "Hit Button 1");
                 }
@@ -663,9 +1091,68 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
             }
 
         });
+    }
 
-        mContextMenuVisible = true;
-        mContextMenu.show(this, displayRect);
+
+    //*****************************************************
+    //*
+    //*		Selection Actions
+    //*
+    //*****************************************************
+
+    /**
+     * Registers the action run when the context menu item with the given id is clicked.
+     * @param actionId The id of the ActionItem
+     * @param action The action, or null to remove it
+     */
+    public void setSelectionAction(int actionId, SelectionAction action){
+        if(action != null)
+            mSelectionActions.put(actionId, action);
+        else
+            mSelectionActions.remove(actionId);
+    }
+
+    /**
+     * Sets the listener selection action results are delivered to.
+     * @param listener
+     */
+    public void setOnSelectionActionListener(SelectionActionExecutor.Listener listener){
+        mActionExecutor.setListener(listener);
+    }
+
+    /**
+     * Returns the executor selection actions run on.
+     * @return
+     */
+    public SelectionActionExecutor getSelectionActionExecutor(){
+        return mActionExecutor;
+    }
+
+    /**
+     * Snapshots the current selection and runs the action registered for the id on it.
+     * The range and text are fetched in one call to the page. If there's no selection, or it
+     * changes meanwhile, the action isn't run and the listener's onActionError gets a
+     * CancellationException.
+     * @param actionId
+     * @return False if no action is registered for the id
+     */
+    public boolean runSelectionAction(int actionId){
+
+        if(mSelectionActions.get(actionId) == null)
+            return false;
+
+        if(mAppliedSequence < 0){
+            mActionExecutor.abandon(actionId, new SelectionSnapshot(mAppliedSequence, null, null, null), "No selection");
+            return true;
+        }
+
+        int requestId = ++mSelectedTextRequestId;
+        mSelectionActionRequests.put(requestId, actionId);
+
+        mCommandPipeline.submit(JavascriptCommandPipeline.COMMAND_SCRIPT,
+                "android.selection.getSnapshot(" + requestId + ");");
+
+        return true;
     }
 
 
@@ -720,15 +1207,26 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
 
     /**
      * The selection has changed
-     * @param range
-     * @param text
-     * @param handleBounds
-     * @param menuBounds
+     * @param payload
      */
-    public void tsjiSelectionChanged(String range, String text, String handleBounds, String menuBounds){
+    public void tsjiSelectionChanged(String payload){
+
+        if(!mSelectionPayload.decode(payload)){
+            Log.e(TAG, "Invalid selection payload: " + payload);
+            return;
+        }
+
+        // Accepted before the selection was cleared
+        if(mTextSelectionJSInterface.isDiscarded(mSelectionPayload.getSequence()))
+            return;
 
-        handleSelection(range, text, handleBounds);
-        Rect displayRect = getContextMenuBounds(menuBounds);
+        // First selection in this view
+        ensureSelectionLayer();
+
+        mContentWidth = (int) mCoordinateSpace.dipToPixels(mSelectionPayload.getContentWidth());
+
+        handleSelection(mSelectionPayload);
+        Rect displayRect = getContextMenuBounds(mSelectionPayload);
 
         if(displayRect != null)
             // This will send the menu rect
@@ -740,80 +1238,267 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
 
 
     /**
-     * Receives the content width for the page.
+     * The page can take commands now.
+     */
+    public void tsjiRuntimeReady(){
+        removeCallbacks(mRuntimeReadyTimeout);
+        mCommandPipeline.setHeld(false);
+    }
+
+    /**
+     * The runtime's script tag didn't load, so evaluate the source instead.
+     * @param url
+     */
+    public void tsjiRuntimeFailed(String url){
+
+        Log.w(TAG, "Unable to load " + url + ", evaluating the runtime source");
+
+        if(!mRuntimeInjector.injectSource()){
+            removeCallbacks(mRuntimeReadyTimeout);
+            mCommandPipeline.setHeld(false);
+        }
+    }
+
+    /**
+     * Releases held commands when the page never reports the runtime ready.
+     */
+    private final Runnable mRuntimeReadyTimeout = new Runnable(){
+        @Override
+        public void run() {
+            if(mCommandPipeline.isHeld()){
+                Log.w(TAG, "Selection runtime not ready after " + RUNTIME_READY_TIMEOUT + "ms, releasing commands");
+                mCommandPipeline.setHeld(false);
+            }
+        }
+    };
+
+
+    /**
+     * Delivers requested selected text.
+     * @param requestId
+     * @param text
+     */
+    public void tsjiSelectedText(int requestId, String text){
+
+        OnSelectedTextListener listener = mSelectedTextRequests.get(requestId);
+        if(listener == null)
+            return;
+
+        mSelectedTextRequests.remove(requestId);
+        listener.onSelectedText(text);
+    }
+
+
+    /**
+     * Runs the action waiting on a selection snapshot, if the selection is still the one
+     * on screen.
+     * @param requestId
+     * @param sequence
+     * @param range
+     * @param text
+     */
+    public void tsjiSelectionSnapshot(int requestId, long sequence, String range, String text){
+
+        int actionId = mSelectionActionRequests.get(requestId, -1);
+        if(actionId < 0)
+            return;
+
+        mSelectionActionRequests.delete(requestId);
+
+        SelectionSnapshot snapshot = new SelectionSnapshot(sequence, text, range, mSelectionBounds);
+
+        SelectionAction action = mSelectionActions.get(actionId);
+        if(action == null){
+            mActionExecutor.abandon(actionId, snapshot, "Action removed");
+            return;
+        }
+
+        // The selection moved on while it was fetched
+        if(sequence != mAppliedSequence){
+            mActionExecutor.abandon(actionId, snapshot, "Selection changed");
+            return;
+        }
+
+        // Only cache ranges of the selection on screen
+        mSelectedRange = range;
+        mSelectedRangeSequence = sequence;
+
+        mActionExecutor.execute(actionId, action, snapshot);
+    }
+
+
+    /**
+     * Delivers a requested serialized range and caches it for its selection.
+     * @param requestId
+     * @param sequence
+     * @param range
      */
-    public void tsjiSetContentWidth(float contentWidth){
-        mContentWidth = (int) getDensityDependentValue(contentWidth, mContext);
+    public void tsjiSerializedRange(int requestId, long sequence, String range){
+
+        // Only cache ranges of the selection on screen
+        if(sequence == mAppliedSequence){
+            mSelectedRange = range;
+            mSelectedRangeSequence = sequence;
+        }
+
+        OnSelectedRangeListener listener = mSelectedRangeRequests.get(requestId);
+        if(listener == null)
+            return;
+
+        mSelectedRangeRequests.remove(requestId);
+        listener.onSelectedRange(range);
     }
 
 
     //*****************************************************
     //*
-    //*		Convenience
+    //*		Selected Text
     //*
     //*****************************************************
 
     /**
-     * Puts up the selection view.
-     * @param range
-     * @param text
-     * @param handleBounds
-     * @return
+     * Calls the listeners of pending text and range requests with null and drops them,
+     * for when the selection or the page they asked about goes away.
      */
-    protected void handleSelection(String range, String text, String handleBounds){
-        try{
-            JSONObject selectionBoundsObject = new JSONObject(handleBounds);
+    protected void cancelSelectionRequests(){
 
-            float scale = getDensityIndependentValue(getScale(), mContext);
+        // Listeners may make new requests, so take each out before calling it
+        while(mSelectedTextRequests.size() > 0){
+            OnSelectedTextListener listener = mSelectedTextRequests.valueAt(0);
+            mSelectedTextRequests.removeAt(0);
+            listener.onSelectedText(null);
+        }
 
-            Rect handleRect = new Rect();
-            handleRect.left = (int) (getDensityDependentValue(selectionBoundsObject.getInt("left"), getContext()) * scale);
-            handleRect.top = (int) (getDensityDependentValue(selectionBoundsObject.getInt("top"), getContext()) * scale);
-            handleRect.right = (int) (getDensityDependentValue(selectionBoundsObject.getInt("right"), getContext()) * scale);
-            handleRect.bottom = (int) (getDensityDependentValue(selectionBoundsObject.getInt("bottom"), getContext()) * scale);
+        while(mSelectedRangeRequests.size() > 0){
+            OnSelectedRangeListener listener = mSelectedRangeRequests.valueAt(0);
+            mSelectedRangeRequests.removeAt(0);
+            listener.onSelectedRange(null);
+        }
 
-            mSelectionBounds = handleRect;
-            mSelectedRange = range;
-            mSelectedText = text;
+        while(mSelectionActionRequests.size() > 0){
+            int actionId = mSelectionActionRequests.valueAt(0);
+            mSelectionActionRequests.delete(mSelectionActionRequests.keyAt(0));
+            mActionExecutor.abandon(actionId, new SelectionSnapshot(-1, null, null, null), "Selection cleared");
+        }
+    }
 
-            if(!isInSelectionMode()){
-                startSelectionMode();
-            }
+    /**
+     * Fetches the full selected text from the page.
+     * @param listener Called on the UI thread with the text
+     */
+    public void requestSelectedText(OnSelectedTextListener listener){
+        requestSelectedText(0, -1, listener);
+    }
 
-            drawSelectionHandles();
+    /**
+     * Fetches a slice of the selected text from the page.
+     * @param start Index of the first character
+     * @param maxLength Max number of characters, negative for no limit
+     * @param listener Called on the UI thread with the text
+     */
+    public void requestSelectedText(int start, int maxLength, OnSelectedTextListener listener){
+
+        int requestId = ++mSelectedTextRequestId;
+        mSelectedTextRequests.put(requestId, listener);
+
+        mCommandPipeline.submit(JavascriptCommandPipeline.COMMAND_SCRIPT,
+                "android.selection.getSelectedText(" + requestId + ", " + start + ", " + maxLength + ");");
+    }
+
+    /**
+     * Returns the selected text as of the last drag end. Use {@link #requestSelectedText}
+     * for the current text.
+     * @return
+     */
+    public String getSelectedText(){
+        return mSelectedText;
+    }
+
+    /**
+     * Returns the length of the current selection in characters. While a handle is dragged
+     * across elements the length isn't counted, and this returns -1 until the drag ends.
+     * @return
+     */
+    public int getSelectedTextLength(){
+        return mSelectedTextLength;
+    }
 
-        } catch (JSONException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+    /**
+     * Fetches the rangy serialized range of the current selection. The range is only
+     * serialized when asked for, and is cached until the selection changes, in which case
+     * the listener is called right away.
+     * @param listener Called on the UI thread with the range
+     */
+    public void requestSelectedRange(OnSelectedRangeListener listener){
+
+        if(mAppliedSequence >= 0 && mSelectedRangeSequence == mAppliedSequence){
+            listener.onSelectedRange(mSelectedRange);
+            return;
         }
+
+        int requestId = ++mSelectedTextRequestId;
+        mSelectedRangeRequests.put(requestId, listener);
+
+        mCommandPipeline.submit(JavascriptCommandPipeline.COMMAND_SCRIPT,
+                "android.selection.getSerializedRange(" + requestId + ");");
     }
 
     /**
-     * Calculates the context menu display rect
-     * @param menuBounds
-     * @return The display Rect
+     * Returns the cached serialized range if it describes the current selection, otherwise null.
+     * @return
      */
-    protected Rect getContextMenuBounds(String menuBounds){
-        try{
+    public String getSelectedRange(){
+        return (mAppliedSequence >= 0 && mSelectedRangeSequence == mAppliedSequence) ? mSelectedRange : null;
+    }
 
-            JSONObject menuBoundsObject = new JSONObject(menuBounds);
 
-            float scale = getDensityIndependentValue(getScale(), mContext);
+    //*****************************************************
+    //*
+    //*		Convenience
+    //*
+    //*****************************************************
 
-            Rect displayRect = new Rect();
-            displayRect.left = (int) (getDensityDependentValue(menuBoundsObject.getInt("left"), getContext()) * scale);
-            displayRect.top = (int) (getDensityDependentValue(menuBoundsObject.getInt("top") - 25, getContext()) * scale);
-            displayRect.right = (int) (getDensityDependentValue(menuBoundsObject.getInt("right"), getContext()) * scale);
-            displayRect.bottom = (int) (getDensityDependentValue(menuBoundsObject.getInt("bottom") + 25, getContext()) * scale);
+    /**
+     * Puts up the selection view.
+     * @param payload
+     * @return
+     */
+    protected void handleSelection(SelectionPayload payload){
+
+        Rect handleRect = (mSelectionBounds != null) ? mSelectionBounds : new Rect();
+        handleRect.left = (int) mCoordinateSpace.pageToView(payload.getHandleLeft());
+        handleRect.top = (int) mCoordinateSpace.pageToView(payload.getHandleTop());
+        handleRect.right = (int) mCoordinateSpace.pageToView(payload.getHandleRight());
+        handleRect.bottom = (int) mCoordinateSpace.pageToView(payload.getHandleBottom());
+
+        mSelectionBounds = handleRect;
+        mAppliedSequence = payload.getSequence();
 
-            return displayRect;
+        // Actions on an older selection are stale now
+        mActionExecutor.cancelUnless(mAppliedSequence);
+        mSelectedTextLength = payload.getTextLength();
 
-        } catch (JSONException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        if(!isInSelectionMode()){
+            startSelectionMode();
         }
 
-        return null;
+        drawSelectionHandles();
+    }
+
+    /**
+     * Calculates the context menu display rect
+     * @param payload
+     * @return The display Rect
+     */
+    protected Rect getContextMenuBounds(SelectionPayload payload){
+
+        Rect displayRect = mContextMenuBounds;
+        displayRect.left = (int) mCoordinateSpace.pageToView(payload.getMenuLeft());
+        displayRect.top = (int) mCoordinateSpace.pageToView(payload.getMenuTop() - 25);
+        displayRect.right = (int) mCoordinateSpace.pageToView(payload.getMenuRight());
+        displayRect.bottom = (int) mCoordinateSpace.pageToView(payload.getMenuBottom() + 25);
+
+        return displayRect;
     }
 
     //*****************************************************
@@ -829,18 +1514,7 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
      * @return
      */
     public float getDensityDependentValue(float val, Context ctx){
-
-        // Get display from context
-        Display display = ((WindowManager) ctx.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
-
-        // Calculate min bound based on metrics
-        DisplayMetrics metrics = new DisplayMetrics();
-        display.getMetrics(metrics);
-
-        return val * (metrics.densityDpi / 160f);
-
-        //return TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, val, metrics);
-
+        return mCoordinateSpace.dipToPixels(val);
     }
 
     /**
@@ -850,18 +1524,6 @@ public class BTWebView extends WebView implements TextSelectionJavascriptInterfa
      * @return
      */
     public float getDensityIndependentValue(float val, Context ctx){
-
-        // Get display from context
-        Display display = ((WindowManager) ctx.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
-
-        // Calculate min bound based on metrics
-        DisplayMetrics metrics = new DisplayMetrics();
-        display.getMetrics(metrics);
-
-
-        return val / (metrics.densityDpi / 160f);
-
-        //return TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_PX, val, metrics);
-
+        return mCoordinateSpace.pixelsToDip(val);
     }
 }
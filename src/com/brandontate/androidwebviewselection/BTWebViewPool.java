@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+import java.util.ArrayList;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.MutableContextWrapper;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.view.ViewGroup;
+
+/**
+ * Keeps prewarmed {@link BTWebView}s ready for reader screens.
+ *
+ * Web views have to be built on the UI thread, so the pool builds them one at a time when the
+ * UI thread goes idle, and loads a blank page into each so the selection runtime is already
+ * injected and compiled. {@link #acquire} hands out a prewarmed view bound to the caller's
+ * context, or builds one if the pool is empty. {@link #release} resets a view and keeps it for
+ * the next screen, or destroys it if the pool is full.
+ *
+ * Each idle web view holds several megabytes, so the pool size follows the device's memory class,
+ * and the pool empties itself when the system is low on memory. Call {@link #destroy} when the
+ * pool is no longer needed, or it stays registered for memory callbacks for the life of the app.
+ *
+ * All methods must be called on the UI thread.
+ *
+ * @author Brandon Tate
+ */
+public class BTWebViewPool {
+
+    /** Page loaded into idle views. */
+    private static final String BLANK_PAGE = "<html><head></head><body></body></html>";
+
+    /** The application context, the base of idle views. */
+    private final Context mApplicationContext;
+
+    /** Idle views, most recently released last. */
+    private final ArrayList<BTWebView> mIdle = new ArrayList<BTWebView>();
+
+    /** Max number of idle views. */
+    private int mMaxSize;
+
+    /** Whether the idle handler is registered. */
+    private boolean mPrewarming = false;
+
+    /** Trims the pool on memory pressure, null before ICS or once destroyed. */
+    private ComponentCallbacks2 mMemoryCallbacks;
+
+    /** Acquires served from the pool, and ones that had to build a view. */
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+
+
+    /**
+     * Constructor accepting any context of the app.
+     * @param context
+     */
+    public BTWebViewPool(Context context){
+        mApplicationContext = context.getApplicationContext();
+        mMaxSize = getDefaultMaxSize(mApplicationContext);
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+            registerMemoryCallbacks();
+    }
+
+    /**
+     * Returns the number of idle views the device can afford, from its memory class.
+     * @param context
+     * @return
+     */
+    public static int getDefaultMaxSize(Context context){
+
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && isLowRamDevice(activityManager))
+            return 0;
+
+        int memoryClass = activityManager.getMemoryClass();
+        if(memoryClass >= 256)
+            return 3;
+        if(memoryClass >= 128)
+            return 2;
+        if(memoryClass >= 64)
+            return 1;
+
+        return 0;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static boolean isLowRamDevice(ActivityManager activityManager){
+        return activityManager.isLowRamDevice();
+    }
+
+    /**
+     * Sets the max number of idle views, dropping any over it.
+     * @param maxSize
+     */
+    public void setMaxSize(int maxSize){
+        mMaxSize = Math.max(0, maxSize);
+        trimTo(mMaxSize);
+    }
+
+    public int getMaxSize(){
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the number of idle views.
+     * @return
+     */
+    public int getSize(){
+        return mIdle.size();
+    }
+
+    /**
+     * Fills the pool in the background, one view each time the UI thread goes idle.
+     */
+    public void prewarm(){
+
+        if(mPrewarming || mIdle.size() >= mMaxSize)
+            return;
+
+        mPrewarming = true;
+        Looper.myQueue().addIdleHandler(mPrewarmHandler);
+    }
+
+    /**
+     * Builds one view per idle pass until the pool is full.
+     */
+    private final MessageQueue.IdleHandler mPrewarmHandler = new MessageQueue.IdleHandler(){
+        @Override
+        public boolean queueIdle() {
+
+            if(mIdle.size() < mMaxSize)
+                mIdle.add(create());
+
+            mPrewarming = mIdle.size() < mMaxSize;
+            return mPrewarming;
+        }
+    };
+
+    /**
+     * Hands out a view bound to the given context, prewarmed if one is idle.
+     * Refills the pool in the background afterwards.
+     * @param context The context of the screen that shows the view
+     * @return
+     */
+    public BTWebView acquire(Context context){
+
+        BTWebView webView;
+        int size = mIdle.size();
+
+        if(size > 0){
+            webView = mIdle.remove(size - 1);
+            mHitCount++;
+        }
+        else{
+            webView = create();
+            mMissCount++;
+        }
+
+        ((MutableContextWrapper) webView.getContext()).setBaseContext(context);
+        webView.clearHistory();
+
+        prewarm();
+
+        return webView;
+    }
+
+    /**
+     * Takes a view back for reuse. It's detached from its parent and reset. If the pool is
+     * full the view is destroyed instead.
+     * @param webView A view handed out by {@link #acquire}
+     */
+    public void release(BTWebView webView){
+
+        ViewGroup parent = (ViewGroup) webView.getParent();
+        if(parent != null)
+            parent.removeView(webView);
+
+        if(mIdle.size() >= mMaxSize || !(webView.getContext() instanceof MutableContextWrapper)){
+            webView.destroy();
+            return;
+        }
+
+        webView.resetState();
+
+        // Don't keep the screen's context alive
+        ((MutableContextWrapper) webView.getContext()).setBaseContext(mApplicationContext);
+
+        load(webView);
+        mIdle.add(webView);
+    }
+
+    /**
+     * Destroys all idle views.
+     */
+    public void clear(){
+        trimTo(0);
+    }
+
+    /**
+     * Drops idle views for the given ComponentCallbacks2 trim level.
+     * @param level
+     */
+    public void trimMemory(int level){
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            trimTo(0);
+        else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)
+            trimTo(mIdle.size() / 2);
+    }
+
+    /**
+     * Destroys all idle views and stops listening for memory callbacks. Released views are
+     * destroyed from then on.
+     */
+    public void destroy(){
+
+        if(mPrewarming){
+            Looper.myQueue().removeIdleHandler(mPrewarmHandler);
+            mPrewarming = false;
+        }
+
+        if(mMemoryCallbacks != null){
+            unregisterMemoryCallbacks();
+            mMemoryCallbacks = null;
+        }
+
+        mMaxSize = 0;
+        trimTo(0);
+    }
+
+    private void trimTo(int size){
+        while(mIdle.size() > size)
+            mIdle.remove(0).destroy();
+    }
+
+    /**
+     * Builds a prewarmed view on a swappable context.
+     */
+    private BTWebView create(){
+        BTWebView webView = new BTWebView(new MutableContextWrapper(mApplicationContext));
+        load(webView);
+        return webView;
+    }
+
+    /**
+     * Loads the blank page, which gets the selection runtime injected.
+     */
+    private void load(BTWebView webView){
+        webView.loadDataWithBaseURL(WebResourceServer.BASE_URL, BLANK_PAGE, "text/html", "UTF-8", null);
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void registerMemoryCallbacks(){
+        mMemoryCallbacks = new ComponentCallbacks2(){
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+                clear();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+
+            }
+        };
+        mApplicationContext.registerComponentCallbacks(mMemoryCallbacks);
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void unregisterMemoryCallbacks(){
+        mApplicationContext.unregisterComponentCallbacks(mMemoryCallbacks);
+    }
+
+
+    //*****************************************************
+    //*
+    //*		Metrics
+    //*
+    //*****************************************************
+
+    /**
+     * Returns the number of acquires served with a prewarmed view.
+     * @return
+     */
+    public long getHitCount(){
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of acquires that had to build a view.
+     * @return
+     */
+    public long getMissCount(){
+        return mMissCount;
+    }
+}
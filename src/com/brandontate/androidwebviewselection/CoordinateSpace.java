@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+import android.util.DisplayMetrics;
+import android.view.View;
+
+/**
+ * Maps between page CSS pixels, web view pixels and screen pixels.
+ *
+ * <ul>
+ * <li>Page coordinates are CSS pixels, either relative to the document or to the viewport.</li>
+ * <li>View coordinates are pixels relative to the web view. Content coordinates are view
+ * coordinates plus the scroll offset, which is where children of the web view are laid out.</li>
+ * <li>Screen coordinates are view coordinates plus the view's location on screen.</li>
+ * </ul>
+ *
+ * The transform is cached and only changes when the owner reports a new density, scale,
+ * scroll offset or screen location, so conversions don't allocate or query the display.
+ *
+ * @author Brandon Tate
+ */
+public class CoordinateSpace {
+
+    /** Pixels per dip. */
+    private float mDensity = 1.0f;
+
+    /** Web view scale, view pixels per CSS pixel. */
+    private float mScale = 1.0f;
+
+    /** CSS pixels per view pixel. */
+    private float mInverseScale = 1.0f;
+
+    /** Scroll offset of the web view. */
+    private int mScrollX = 0;
+    private int mScrollY = 0;
+
+    /** Location of the web view on screen. */
+    private int mScreenX = 0;
+    private int mScreenY = 0;
+
+    /** Temp for reading the screen location. */
+    private final int[] mLocationTemp = new int[2];
+
+
+    /**
+     * Updates the density from the display metrics.
+     * @param metrics
+     */
+    public void setDisplayMetrics(DisplayMetrics metrics){
+        mDensity = metrics.densityDpi / 160f;
+    }
+
+    /**
+     * Updates the web view scale.
+     * @param scale
+     */
+    public void setScale(float scale){
+
+        if(scale <= 0 || scale == mScale)
+            return;
+
+        mScale = scale;
+        mInverseScale = 1.0f / scale;
+    }
+
+    /**
+     * Updates the scroll offset.
+     * @param scrollX
+     * @param scrollY
+     */
+    public void setScroll(int scrollX, int scrollY){
+        mScrollX = scrollX;
+        mScrollY = scrollY;
+    }
+
+    /**
+     * Updates the screen location from the given view.
+     * @param view
+     */
+    public void setScreenLocation(View view){
+        view.getLocationOnScreen(mLocationTemp);
+        mScreenX = mLocationTemp[0];
+        mScreenY = mLocationTemp[1];
+    }
+
+    public float getScale(){
+        return mScale;
+    }
+
+    public float getDensity(){
+        return mDensity;
+    }
+
+
+    //*****************************************************
+    //*
+    //*		Conversions
+    //*
+    //*****************************************************
+
+    /**
+     * Converts dips to pixels.
+     * @param dips
+     * @return
+     */
+    public float dipToPixels(float dips){
+        return dips * mDensity;
+    }
+
+    /**
+     * Converts pixels to dips.
+     * @param pixels
+     * @return
+     */
+    public float pixelsToDip(float pixels){
+        return pixels / mDensity;
+    }
+
+    /**
+     * Converts CSS pixels to view pixels. Document coordinates map to content coordinates
+     * and viewport coordinates map to view coordinates.
+     * @param page
+     * @return
+     */
+    public float pageToView(float page){
+        return page * mScale;
+    }
+
+    /**
+     * Converts view pixels to CSS pixels in the viewport.
+     * @param view
+     * @return
+     */
+    public float viewToPage(float view){
+        return view * mInverseScale;
+    }
+
+    /**
+     * Converts a content x coordinate to a viewport x coordinate in CSS pixels.
+     * @param contentX
+     * @return
+     */
+    public float contentToPageX(float contentX){
+        return (contentX - mScrollX) * mInverseScale;
+    }
+
+    /**
+     * Converts a content y coordinate to a viewport y coordinate in CSS pixels.
+     * @param contentY
+     * @return
+     */
+    public float contentToPageY(float contentY){
+        return (contentY - mScrollY) * mInverseScale;
+    }
+
+    /**
+     * Converts a view x coordinate to a screen x coordinate.
+     * @param viewX
+     * @return
+     */
+    public float viewToScreenX(float viewX){
+        return viewX + mScreenX;
+    }
+
+    /**
+     * Converts a view y coordinate to a screen y coordinate.
+     * @param viewY
+     * @return
+     */
+    public float viewToScreenY(float viewY){
+        return viewY + mScreenY;
+    }
+
+    /**
+     * Converts a screen x coordinate to a view x coordinate.
+     * @param screenX
+     * @return
+     */
+    public float screenToViewX(float screenX){
+        return screenX - mScreenX;
+    }
+
+    /**
+     * Converts a screen y coordinate to a view y coordinate.
+     * @param screenY
+     * @return
+     */
+    public float screenToViewY(float screenY){
+        return screenY - mScreenY;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+/**
+ * Coalesces selection handle drag positions to one page update per display frame.
+ *
+ * Only the latest start and end positions are kept. When the frame fires the listener
+ * is called once with whatever is pending. All methods must be called on the UI thread.
+ *
+ * @author Brandon Tate
+ */
+public class DragUpdateScheduler implements FrameClock.Callback {
+
+    /**
+     * Receives the coalesced handle positions.
+     */
+    public interface Listener {
+
+        /**
+         * Sends the pending handle positions to the page. Positions are in page coordinates.
+         * @param hasStart True if the start position changed since the last update
+         * @param startX
+         * @param startY
+         * @param hasEnd True if the end position changed since the last update
+         * @param endX
+         * @param endY
+         */
+        public abstract void onDragUpdate(boolean hasStart, float startX, float startY,
+                                          boolean hasEnd, float endX, float endY);
+    }
+
+    /** The listener. */
+    private final Listener mListener;
+
+    /** The frame clock. */
+    private final FrameClock mFrameClock;
+
+    /** Pending start position. */
+    private boolean mHasStart = false;
+    private float mStartX;
+    private float mStartY;
+
+    /** Pending end position. */
+    private boolean mHasEnd = false;
+    private float mEndX;
+    private float mEndY;
+
+    /** Number of positions replaced before they were sent. */
+    private long mCoalescedCount = 0;
+
+    /** Number of updates sent to the listener. */
+    private long mSentCount = 0;
+
+
+    /**
+     * Constructor accepting the listener.
+     * @param listener
+     */
+    public DragUpdateScheduler(Listener listener){
+        mListener = listener;
+        mFrameClock = new FrameClock(this);
+    }
+
+    /**
+     * Queues a start handle position for the next frame.
+     * @param x
+     * @param y
+     */
+    public void postStart(float x, float y){
+
+        if(mHasStart)
+            mCoalescedCount++;
+
+        mHasStart = true;
+        mStartX = x;
+        mStartY = y;
+
+        mFrameClock.schedule();
+    }
+
+    /**
+     * Queues an end handle position for the next frame.
+     * @param x
+     * @param y
+     */
+    public void postEnd(float x, float y){
+
+        if(mHasEnd)
+            mCoalescedCount++;
+
+        mHasEnd = true;
+        mEndX = x;
+        mEndY = y;
+
+        mFrameClock.schedule();
+    }
+
+    /**
+     * Sends any pending position right away instead of waiting for the frame.
+     */
+    public void flush(){
+        mFrameClock.cancel();
+        dispatch();
+    }
+
+    /**
+     * Drops any pending position.
+     */
+    public void cancel(){
+        mFrameClock.cancel();
+        mHasStart = false;
+        mHasEnd = false;
+    }
+
+    /**
+     * Returns the number of positions that were replaced by a newer one before being sent.
+     * @return
+     */
+    public long getCoalescedCount(){
+        return mCoalescedCount;
+    }
+
+    /**
+     * Returns the number of updates sent to the page.
+     * @return
+     */
+    public long getSentCount(){
+        return mSentCount;
+    }
+
+    @Override
+    public void onFrame(long frameTimeNanos) {
+        dispatch();
+    }
+
+    /**
+     * Hands the pending positions to the listener.
+     */
+    private void dispatch(){
+
+        if(!mHasStart && !mHasEnd)
+            return;
+
+        boolean hasStart = mHasStart;
+        boolean hasEnd = mHasEnd;
+        mHasStart = false;
+        mHasEnd = false;
+
+        mSentCount++;
+        mListener.onDragUpdate(hasStart, mStartX, mStartY, hasEnd, mEndX, mEndY);
+    }
+}
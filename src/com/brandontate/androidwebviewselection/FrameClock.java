@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * Runs a callback at most once per display frame.
+ *
+ * Uses the Choreographer on Jelly Bean and up, and falls back to a handler
+ * aligned to a 16ms frame on older devices. Must be constructed on the UI thread,
+ * {@link #schedule()} may be called from any thread.
+ *
+ * @author Brandon Tate
+ */
+public class FrameClock {
+
+    /** Frame interval used when the Choreographer isn't available. */
+    private static final long FALLBACK_FRAME_INTERVAL = 16;
+
+    /**
+     * Receives the frame callbacks.
+     */
+    public interface Callback {
+
+        /**
+         * Called on the UI thread once per scheduled frame.
+         * @param frameTimeNanos
+         */
+        public abstract void onFrame(long frameTimeNanos);
+    }
+
+    /** The frame callback. */
+    private final Callback mCallback;
+
+    /** Whether a frame is already scheduled. */
+    private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+
+    /** UI thread handler for the fallback clock. */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Choreographer backed callback, null before Jelly Bean. */
+    private ChoreographerCallback mChoreographerCallback;
+
+    /** Handler backed callback for older devices. */
+    private final Runnable mFallbackRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dispatchFrame(System.nanoTime());
+        }
+    };
+
+
+    /**
+     * Constructor accepting the frame callback.
+     * @param callback
+     */
+    public FrameClock(Callback callback){
+        mCallback = callback;
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN){
+            mChoreographerCallback = new ChoreographerCallback();
+        }
+    }
+
+    /**
+     * Schedules the callback for the next frame. Does nothing if one is already scheduled.
+     */
+    public void schedule(){
+
+        if(!mScheduled.compareAndSet(false, true))
+            return;
+
+        if(mChoreographerCallback != null){
+            mChoreographerCallback.post();
+        }
+        else{
+            long now = SystemClock.uptimeMillis();
+            mHandler.postDelayed(mFallbackRunnable, FALLBACK_FRAME_INTERVAL - (now % FALLBACK_FRAME_INTERVAL));
+        }
+    }
+
+    /**
+     * Cancels the scheduled frame, if any.
+     */
+    public void cancel(){
+
+        if(!mScheduled.compareAndSet(true, false))
+            return;
+
+        if(mChoreographerCallback != null)
+            mChoreographerCallback.cancel();
+        else
+            mHandler.removeCallbacks(mFallbackRunnable);
+    }
+
+    /**
+     * Checks to see if a frame is scheduled.
+     * @return
+     */
+    public boolean isScheduled(){
+        return mScheduled.get();
+    }
+
+    /**
+     * Clears the scheduled flag and runs the callback.
+     * The flag is cleared first so the callback can schedule the next frame.
+     * @param frameTimeNanos
+     */
+    private void dispatchFrame(long frameTimeNanos){
+
+        if(!mScheduled.compareAndSet(true, false))
+            return;
+
+        mCallback.onFrame(frameTimeNanos);
+    }
+
+
+    /**
+     * Wraps the Choreographer so it isn't referenced on older devices.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class ChoreographerCallback implements Choreographer.FrameCallback {
+
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+
+        void post(){
+            mChoreographer.postFrameCallback(this);
+        }
+
+        void cancel(){
+            mChoreographer.removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            dispatchFrame(frameTimeNanos);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+import java.util.ArrayList;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.webkit.ValueCallback;
+import android.webkit.WebView;
+
+/**
+ * Sends selection commands to the page with flow control.
+ *
+ * At most a fixed number of evaluations are in flight at once. Commands that can't be sent
+ * yet wait in a queue, and a queued command is dropped when a newer one of the same type
+ * arrives, so a slow page only ever runs the latest drag position. The newer command goes to
+ * the back of the queue, so commands are always sent in the order they were submitted and
+ * their sequence numbers only ever increase. Before KitKat there's no evaluateJavascript, so
+ * commands go through loadUrl and are considered done once sent.
+ *
+ * All methods must be called on the UI thread.
+ *
+ * @author Brandon Tate
+ */
+public class JavascriptCommandPipeline {
+
+    /** Command types. Queued commands of the same type are merged, except for scripts. */
+    public static final int COMMAND_SCRIPT = 0;
+    public static final int COMMAND_START_TOUCH = 1;
+    public static final int COMMAND_LONG_TOUCH = 2;
+    public static final int COMMAND_SET_START_POS = 3;
+    public static final int COMMAND_SET_END_POS = 4;
+    public static final int COMMAND_CLEAR_SELECTION = 5;
+
+    /** Number of command types. */
+    public static final int COMMAND_TYPE_COUNT = 6;
+
+    /** Default number of evaluations allowed in flight. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+
+    /** The web view to evaluate in. */
+    private final WebView mWebView;
+
+    /** Max evaluations in flight. */
+    private final int mMaxInFlight;
+
+    /** Whether evaluateJavascript is available. */
+    private final boolean mCanEvaluate;
+
+    /** Commands waiting to be sent, oldest first. */
+    private final ArrayList<Command> mQueue = new ArrayList<Command>();
+
+    /** Recycled commands. */
+    private final ArrayList<Command> mCommandPool = new ArrayList<Command>();
+
+    /** Latency instrumentation, may be null. */
+    private SelectionMetrics mMetrics;
+
+    /** Number of evaluations in flight. */
+    private int mInFlight = 0;
+
+    /** Bumped by reset, so callbacks from a page that's gone are ignored. */
+    private int mGeneration = 0;
+
+    /** Whether queued commands are held back until the page can run them. */
+    private boolean mHeld = false;
+
+    /** Deepest the queue has been. */
+    private int mMaxQueueDepth = 0;
+
+    /** Per type counters. */
+    private final long[] mSentCounts = new long[COMMAND_TYPE_COUNT];
+    private final long[] mMergedCounts = new long[COMMAND_TYPE_COUNT];
+    private final long[] mCompletedCounts = new long[COMMAND_TYPE_COUNT];
+    private final long[] mTotalRoundTripNanos = new long[COMMAND_TYPE_COUNT];
+    private final long[] mMaxRoundTripNanos = new long[COMMAND_TYPE_COUNT];
+
+
+    /**
+     * Constructor accepting the web view and the number of evaluations allowed in flight.
+     * @param webView
+     * @param maxInFlight
+     */
+    public JavascriptCommandPipeline(WebView webView, int maxInFlight){
+        mWebView = webView;
+        mMaxInFlight = Math.max(1, maxInFlight);
+        mCanEvaluate = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * Sets the metrics that handle drag commands are reported to.
+     * @param metrics
+     */
+    public void setSelectionMetrics(SelectionMetrics metrics){
+        mMetrics = metrics;
+    }
+
+    /**
+     * Queues a command and sends it if there's room in flight.
+     * @param type One of the COMMAND_ constants
+     * @param script The javascript to run, without the javascript: prefix
+     */
+    public void submit(int type, String script){
+        submit(type, script, 0);
+    }
+
+    /**
+     * Queues a command that carries a sequence number and sends it if there's room in flight.
+     * @param type One of the COMMAND_ constants
+     * @param script The javascript to run, without the javascript: prefix
+     * @param sequence The sequence number the page echoes back, 0 for none
+     */
+    public void submit(int type, String script, long sequence){
+
+        if(type != COMMAND_SCRIPT){
+
+            // Latest wins, queued behind everything submitted before it
+            for(int i = 0; i < mQueue.size(); i++){
+                if(mQueue.get(i).type == type){
+                    recycle(mQueue.remove(i));
+                    mMergedCounts[type]++;
+                    break;
+                }
+            }
+        }
+
+        Command command = obtain();
+        command.type = type;
+        command.script = script;
+        command.sequence = sequence;
+        mQueue.add(command);
+
+        if(mQueue.size() > mMaxQueueDepth)
+            mMaxQueueDepth = mQueue.size();
+
+        drain();
+    }
+
+    /**
+     * Drops all queued commands. Commands in flight still complete.
+     */
+    public void clear(){
+        for(int i = 0; i < mQueue.size(); i++){
+            recycle(mQueue.get(i));
+        }
+        mQueue.clear();
+    }
+
+    /**
+     * Drops all queued commands and forgets the ones in flight, for when the page goes away.
+     * A navigation can lose evaluation callbacks, which would otherwise hold the pipeline.
+     */
+    public void reset(){
+        clear();
+        mInFlight = 0;
+        mGeneration++;
+    }
+
+    /**
+     * Holds queued commands back, for when the page can't run them yet, or sends them.
+     * @param held
+     */
+    public void setHeld(boolean held){
+        mHeld = held;
+        drain();
+    }
+
+    public boolean isHeld(){
+        return mHeld;
+    }
+
+    /**
+     * Sends queued commands while there's room in flight.
+     */
+    private void drain(){
+
+        if(mHeld)
+            return;
+
+        while(mInFlight < mMaxInFlight && !mQueue.isEmpty()){
+
+            Command command = mQueue.remove(0);
+            mSentCounts[command.type]++;
+
+            // Only handle drags answer a pending touch, other sequenced commands would take
+            // the touch's latency sample without being what it waited on
+            if(mMetrics != null && command.sequence > 0
+                    && (command.type == COMMAND_SET_START_POS || command.type == COMMAND_SET_END_POS))
+                mMetrics.markCommandIssued(command.sequence);
+
+            if(mCanEvaluate){
+                mInFlight++;
+                command.generation = mGeneration;
+                command.sentAt = System.nanoTime();
+                evaluate(command);
+            }
+            else{
+                mWebView.loadUrl("javascript:" + command.script);
+                recycle(command);
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void evaluate(Command command){
+        mWebView.evaluateJavascript(command.script, command);
+    }
+
+    /**
+     * Records the round trip for a finished command and sends the next one.
+     * @param command
+     */
+    private void onComplete(Command command){
+
+        // Sent to a page that's gone, and no longer counted in flight
+        if(command.generation != mGeneration)
+            return;
+
+        long roundTrip = System.nanoTime() - command.sentAt;
+        int type = command.type;
+
+        mCompletedCounts[type]++;
+        mTotalRoundTripNanos[type] += roundTrip;
+        if(roundTrip > mMaxRoundTripNanos[type])
+            mMaxRoundTripNanos[type] = roundTrip;
+
+        mInFlight--;
+        recycle(command);
+
+        drain();
+    }
+
+    private Command obtain(){
+        int size = mCommandPool.size();
+        return (size > 0) ? mCommandPool.remove(size - 1) : new Command();
+    }
+
+    private void recycle(Command command){
+        command.script = null;
+        mCommandPool.add(command);
+    }
+
+
+    //*****************************************************
+    //*
+    //*		Metrics
+    //*
+    //*****************************************************
+
+    /**
+     * Returns the number of commands waiting to be sent.
+     * @return
+     */
+    public int getQueueDepth(){
+        return mQueue.size();
+    }
+
+    /**
+     * Returns the deepest the queue has been.
+     * @return
+     */
+    public int getMaxQueueDepth(){
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * Returns the number of evaluations in flight.
+     * @return
+     */
+    public int getInFlightCount(){
+        return mInFlight;
+    }
+
+    /**
+     * Returns the number of commands of the given type sent to the page.
+     * @param type
+     * @return
+     */
+    public long getSentCount(int type){
+        return mSentCounts[type];
+    }
+
+    /**
+     * Returns the number of queued commands of the given type replaced by a newer one.
+     * @param type
+     * @return
+     */
+    public long getMergedCount(int type){
+        return mMergedCounts[type];
+    }
+
+    /**
+     * Returns the average round trip in milliseconds for the given type,
+     * or 0 if none have completed. Always 0 before KitKat.
+     * @param type
+     * @return
+     */
+    public float getAverageRoundTripMillis(int type){
+        long completed = mCompletedCounts[type];
+        return (completed == 0) ? 0 : (mTotalRoundTripNanos[type] / (float) completed) / 1000000f;
+    }
+
+    /**
+     * Returns the longest round trip in milliseconds for the given type.
+     * @param type
+     * @return
+     */
+    public float getMaxRoundTripMillis(int type){
+        return mMaxRoundTripNanos[type] / 1000000f;
+    }
+
+
+    /**
+     * A queued or in flight command. Doubles as its own evaluation callback.
+     */
+    private class Command implements ValueCallback<String> {
+
+        int type;
+        String script;
+        long sequence;
+        long sentAt;
+        int generation;
+
+        @Override
+        public void onReceiveValue(String value) {
+            onComplete(this);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+import java.util.Locale;
+
+/**
+ * Fixed bucket latency histogram.
+ *
+ * Buckets roughly double from half a millisecond up to half a second, with a last bucket for
+ * everything slower. Recording is a few array writes, so it's cheap enough to leave on.
+ *
+ * @author Brandon Tate
+ */
+public class LatencyHistogram {
+
+    /** Upper bound of each bucket in microseconds. The last bucket is unbounded. */
+    private static final long[] BUCKET_BOUNDS_MICROS = {
+        500, 1000, 2000, 4000, 8000, 16000, 33000, 66000, 133000, 266000, 533000, Long.MAX_VALUE
+    };
+
+    /** Number of buckets. */
+    public static final int BUCKET_COUNT = BUCKET_BOUNDS_MICROS.length;
+
+    /** The stage name. */
+    private final String mName;
+
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount = 0;
+    private long mTotalNanos = 0;
+    private long mMaxNanos = 0;
+
+
+    /**
+     * Constructor accepting the name of what is measured.
+     * @param name
+     */
+    public LatencyHistogram(String name){
+        mName = name;
+    }
+
+    /**
+     * Records a latency.
+     * @param nanos
+     */
+    public synchronized void record(long nanos){
+
+        if(nanos < 0)
+            return;
+
+        long micros = nanos / 1000;
+        int bucket = 0;
+        while(micros > BUCKET_BOUNDS_MICROS[bucket])
+            bucket++;
+
+        mBuckets[bucket]++;
+        mCount++;
+        mTotalNanos += nanos;
+        if(nanos > mMaxNanos)
+            mMaxNanos = nanos;
+    }
+
+    /**
+     * Clears all recorded latencies.
+     */
+    public synchronized void reset(){
+        for(int i = 0; i < BUCKET_COUNT; i++)
+            mBuckets[i] = 0;
+        mCount = 0;
+        mTotalNanos = 0;
+        mMaxNanos = 0;
+    }
+
+    public String getName(){
+        return mName;
+    }
+
+    public synchronized long getCount(){
+        return mCount;
+    }
+
+    /**
+     * Returns the number of samples in the given bucket.
+     * @param bucket
+     * @return
+     */
+    public synchronized long getBucketCount(int bucket){
+        return mBuckets[bucket];
+    }
+
+    /**
+     * Returns the upper bound of the given bucket in milliseconds, or infinity for the last one.
+     * @param bucket
+     * @return
+     */
+    public static float getBucketUpperBoundMillis(int bucket){
+        long bound = BUCKET_BOUNDS_MICROS[bucket];
+        return (bound == Long.MAX_VALUE) ? Float.POSITIVE_INFINITY : bound / 1000f;
+    }
+
+    public synchronized float getMeanMillis(){
+        return (mCount == 0) ? 0 : (mTotalNanos / (float) mCount) / 1000000f;
+    }
+
+    public synchronized float getMaxMillis(){
+        return mMaxNanos / 1000000f;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile, in milliseconds.
+     * Samples in the last bucket report the max instead.
+     * @param percentile Between 0 and 100
+     * @return
+     */
+    public synchronized float getPercentileMillis(float percentile){
+
+        if(mCount == 0)
+            return 0;
+
+        long target = (long) Math.ceil(mCount * (percentile / 100f));
+        long seen = 0;
+
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            seen += mBuckets[i];
+            if(seen >= target && seen > 0)
+                return (i == BUCKET_COUNT - 1) ? getMaxMillis() : getBucketUpperBoundMillis(i);
+        }
+
+        return getMaxMillis();
+    }
+
+    @Override
+    public synchronized String toString(){
+        return String.format(Locale.US, "%s: n=%d mean=%.2fms p50<=%.1fms p95<=%.1fms max=%.2fms",
+                mName, mCount, getMeanMillis(), getPercentileMillis(50), getPercentileMillis(95), getMaxMillis());
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+/**
+ * Something done with the selection from a context menu item, such as a dictionary lookup
+ * or saving a highlight. Register actions with {@link BTWebView#setSelectionAction}.
+ *
+ * @author Brandon Tate
+ */
+public interface SelectionAction {
+
+    /**
+     * Returns whether {@link #execute} runs on a background thread rather than the UI thread.
+     * @return
+     */
+    public abstract boolean runsInBackground();
+
+    /**
+     * Runs the action. Background actions are interrupted when they're cancelled, so long
+     * running work should check {@link Thread#interrupted()} or handle InterruptedException.
+     * @param snapshot The selection when the action was started
+     * @return The result handed to the {@link SelectionActionExecutor.Listener}, may be null
+     * @throws Exception Handed to the listener
+     */
+    public abstract Object execute(SelectionSnapshot snapshot) throws Exception;
+}
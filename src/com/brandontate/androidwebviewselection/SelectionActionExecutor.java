@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Runs {@link SelectionAction}s and delivers their results on the UI thread.
+ *
+ * Background actions run on a small thread pool shared by all web views. Each action is tied
+ * to the snapshot of the selection it was started with, and is cancelled when that selection
+ * goes away. A cancelled action is interrupted, and its result is never delivered.
+ *
+ * All methods must be called on the UI thread.
+ *
+ * @author Brandon Tate
+ */
+public class SelectionActionExecutor {
+
+    /**
+     * Receives action results.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the UI thread when an action finishes.
+         * @param actionId The id the action was registered with
+         * @param snapshot The selection the action ran on
+         * @param result What the action returned
+         */
+        public abstract void onActionResult(int actionId, SelectionSnapshot snapshot, Object result);
+
+        /**
+         * Called on the UI thread when an action throws.
+         * @param actionId The id the action was registered with
+         * @param snapshot The selection the action ran on
+         * @param error What the action threw
+         */
+        public abstract void onActionError(int actionId, SelectionSnapshot snapshot, Throwable error);
+    }
+
+    /** Background threads shared by all executors. */
+    private static final int THREAD_COUNT = 2;
+
+    /** Shared pool, created on first use. */
+    private static ExecutorService sThreadPool;
+
+    /** Delivers results on the UI thread. */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Background actions started and not yet delivered or cancelled. */
+    private final ArrayList<Task> mRunning = new ArrayList<Task>();
+
+    /** The listener, may be null. */
+    private Listener mListener;
+
+    /** Number of actions cancelled. */
+    private long mCancelledCount = 0;
+
+    /** Number of actions abandoned before they could run. */
+    private long mAbandonedCount = 0;
+
+
+    /**
+     * Sets the listener results are delivered to.
+     * @param listener
+     */
+    public void setListener(Listener listener){
+        mListener = listener;
+    }
+
+    /**
+     * Runs an action on the snapshot. UI thread actions run and deliver right away.
+     * @param actionId The id the action was registered with
+     * @param action
+     * @param snapshot
+     */
+    public void execute(int actionId, SelectionAction action, SelectionSnapshot snapshot){
+
+        Task task = new Task(actionId, action, snapshot);
+
+        if(!task.background){
+            task.run();
+            task.deliver();
+            return;
+        }
+
+        mRunning.add(task);
+        task.future = getThreadPool().submit(task);
+    }
+
+    /**
+     * Reports an action that won't run, e.g. because the selection changed while it was being
+     * snapshotted. The listener gets a CancellationException through onActionError.
+     * @param actionId The id the action was registered with
+     * @param snapshot The selection the action would have run on
+     * @param reason
+     */
+    public void abandon(int actionId, SelectionSnapshot snapshot, String reason){
+
+        mAbandonedCount++;
+
+        if(mListener != null)
+            mListener.onActionError(actionId, snapshot, new CancellationException(reason));
+    }
+
+    /**
+     * Cancels actions started on any selection other than the given one.
+     * @param sequence Sequence number of the current selection
+     */
+    public void cancelUnless(long sequence){
+
+        for(int i = mRunning.size() - 1; i >= 0; i--){
+            Task task = mRunning.get(i);
+            if(task.snapshot.getSequence() != sequence){
+                mRunning.remove(i);
+                task.cancel();
+            }
+        }
+    }
+
+    /**
+     * Cancels all actions in flight.
+     */
+    public void cancelAll(){
+
+        for(int i = mRunning.size() - 1; i >= 0; i--)
+            mRunning.remove(i).cancel();
+    }
+
+    /**
+     * Returns the number of background actions in flight.
+     * @return
+     */
+    public int getRunningCount(){
+        return mRunning.size();
+    }
+
+    /**
+     * Returns the number of actions cancelled.
+     * @return
+     */
+    public long getCancelledCount(){
+        return mCancelledCount;
+    }
+
+    /**
+     * Returns the number of actions abandoned before they could run.
+     * @return
+     */
+    public long getAbandonedCount(){
+        return mAbandonedCount;
+    }
+
+    private static synchronized ExecutorService getThreadPool(){
+
+        if(sThreadPool == null){
+            sThreadPool = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory(){
+
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable(){
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "SelectionAction #" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return sThreadPool;
+    }
+
+
+    /**
+     * An action on a snapshot, run once.
+     */
+    private class Task implements Runnable {
+
+        final int actionId;
+        final SelectionAction action;
+        final SelectionSnapshot snapshot;
+        final boolean background;
+
+        /** Set on the UI thread when cancelled. */
+        volatile boolean cancelled = false;
+
+        /** The background run, null for UI thread actions. */
+        Future<?> future;
+
+        /** Outcome, written by run and read by deliver after the handler post. */
+        Object result;
+        Throwable error;
+
+        Task(int actionId, SelectionAction action, SelectionSnapshot snapshot){
+            this.actionId = actionId;
+            this.action = action;
+            this.snapshot = snapshot;
+            this.background = action.runsInBackground();
+        }
+
+        @Override
+        public void run() {
+
+            if(cancelled)
+                return;
+
+            try{
+                result = action.execute(snapshot);
+            }
+            catch(Throwable e){
+                error = e;
+            }
+
+            // UI thread actions are delivered by execute
+            if(background){
+                mHandler.post(new Runnable(){
+                    @Override
+                    public void run() {
+                        // Still current if it's in flight
+                        if(mRunning.remove(Task.this))
+                            deliver();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Hands the outcome to the listener, on the UI thread.
+         */
+        void deliver(){
+
+            if(cancelled || mListener == null)
+                return;
+
+            if(error != null)
+                mListener.onActionError(actionId, snapshot, error);
+            else
+                mListener.onActionResult(actionId, snapshot, result);
+        }
+
+        /**
+         * Stops the action and drops its outcome, on the UI thread.
+         */
+        void cancel(){
+
+            cancelled = true;
+            mCancelledCount++;
+
+            if(future != null)
+                future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+import com.blahti.drag.DragLayer;
+import com.blahti.drag.DropTarget;
+import com.blahti.drag.DropTargetIndex;
+import com.blahti.drag.MyAbsoluteLayout;
+
+import android.app.Activity;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.os.Bundle;
+import android.os.Debug;
+import android.util.Log;
+import android.view.View;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+/**
+ * Benchmarks for the selection views. Not part of the library, and not exported, so other apps
+ * can't start it. On a debuggable build, start it as the app with
+ * <pre>
+ * adb shell run-as com.brandontate.androidwebviewselection am start -n com.brandontate.androidwebviewselection/.SelectionBenchmarkActivity
+ * </pre>
+ *
+ * Startup: builds web views with the selection overlay left for first use, then creates the
+ * overlay on each, and reports the time and memory each step costs per view. The second step is
+ * what a view that never selects anything saves.
+ *
+ * Drop targets: lays out a grid of drop targets and times hit tests through
+ * {@link DropTargetIndex} against walking the targets and measuring each one, as every drag
+ * move used to.
+ *
+ * @author Brandon Tate
+ */
+public class SelectionBenchmarkActivity extends Activity {
+
+    /** The logging tag. */
+    private static final String TAG = "SelectionBenchmark";
+
+    /** Web views built per run. */
+    private static final int VIEW_COUNT = 8;
+
+    /** Drop target grid, and hit tests per run. */
+    private static final int TARGET_COLUMNS = 6;
+    private static final int TARGET_ROWS = 8;
+    private static final int HIT_TEST_COUNT = 20000;
+
+    /** The results. */
+    private TextView mResults;
+    private final StringBuilder mReport = new StringBuilder();
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        mResults = new TextView(this);
+        mResults.setTypeface(Typeface.MONOSPACE);
+        mResults.setText("Running...");
+
+        ScrollView scrollView = new ScrollView(this);
+        scrollView.addView(mResults);
+        setContentView(scrollView);
+
+        // Let the first frame draw before blocking the UI thread
+        mResults.postDelayed(new Runnable(){
+            @Override
+            public void run() {
+                runStartupBenchmark();
+                runDropTargetBenchmark();
+                mResults.setText(mReport.toString());
+            }
+        }, 500);
+    }
+
+    /**
+     * Reports the cost of building a web view, and of creating its selection overlay.
+     */
+    private void runStartupBenchmark(){
+
+        ArrayList<BTWebView> webViews = new ArrayList<BTWebView>();
+
+        // The first web view in a process starts the renderer, keep it out of the numbers
+        new BTWebView(this).destroy();
+
+        Snapshot before = Snapshot.take();
+
+        long start = System.nanoTime();
+        for(int i = 0; i < VIEW_COUNT; i++)
+            webViews.add(new BTWebView(this));
+        long constructNanos = System.nanoTime() - start;
+
+        Snapshot constructed = Snapshot.take();
+
+        start = System.nanoTime();
+        for(int i = 0; i < VIEW_COUNT; i++)
+            webViews.get(i).ensureSelectionLayer();
+        long overlayNanos = System.nanoTime() - start;
+
+        Snapshot withOverlay = Snapshot.take();
+
+        report("Startup, %d web views", VIEW_COUNT);
+        report("  construct, lazy overlay: %.2f ms/view, java %+d KB/view, native %+d KB/view",
+                constructNanos / 1e6 / VIEW_COUNT,
+                (constructed.javaBytes - before.javaBytes) / 1024 / VIEW_COUNT,
+                (constructed.nativeBytes - before.nativeBytes) / 1024 / VIEW_COUNT);
+        report("  overlay on first use:    %.2f ms/view, java %+d KB/view, native %+d KB/view",
+                overlayNanos / 1e6 / VIEW_COUNT,
+                (withOverlay.javaBytes - constructed.javaBytes) / 1024 / VIEW_COUNT,
+                (withOverlay.nativeBytes - constructed.nativeBytes) / 1024 / VIEW_COUNT);
+        report("  saved per view that never selects: %.2f ms, %d KB",
+                overlayNanos / 1e6 / VIEW_COUNT,
+                ((withOverlay.javaBytes - constructed.javaBytes) + (withOverlay.nativeBytes - constructed.nativeBytes)) / 1024 / VIEW_COUNT);
+        report("");
+
+        for(int i = 0; i < webViews.size(); i++)
+            webViews.get(i).destroy();
+    }
+
+    /**
+     * Reports the cost of finding the drop target under a touch, cached against measured per move.
+     */
+    private void runDropTargetBenchmark(){
+
+        int width = getResources().getDisplayMetrics().widthPixels;
+        int height = getResources().getDisplayMetrics().heightPixels;
+        int targetWidth = width / TARGET_COLUMNS;
+        int targetHeight = height / TARGET_ROWS;
+
+        // Lay the targets out in a detached container, screen positions are relative to it
+        MyAbsoluteLayout container = new MyAbsoluteLayout(this);
+        ArrayList<DropTarget> targets = new ArrayList<DropTarget>();
+        DropTargetIndex index = new DropTargetIndex();
+
+        for(int row = 0; row < TARGET_ROWS; row++){
+            for(int column = 0; column < TARGET_COLUMNS; column++){
+                DragLayer target = new DragLayer(this, null);
+                container.addView(target, new MyAbsoluteLayout.LayoutParams(targetWidth, targetHeight,
+                        column * targetWidth, row * targetHeight));
+                targets.add(target);
+                index.add(target);
+            }
+        }
+
+        container.measure(View.MeasureSpec.makeMeasureSpec(width, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(height, View.MeasureSpec.EXACTLY));
+        container.layout(0, 0, width, height);
+
+        // Same touches for both
+        Random random = new Random(42);
+        int[] xs = new int[HIT_TEST_COUNT];
+        int[] ys = new int[HIT_TEST_COUNT];
+        for(int i = 0; i < HIT_TEST_COUNT; i++){
+            xs[i] = random.nextInt(width);
+            ys[i] = random.nextInt(height);
+        }
+
+        int[] coordinates = new int[2];
+        Rect rect = new Rect();
+        int linearHits = 0;
+        int indexHits = 0;
+
+        long start = System.nanoTime();
+        for(int i = 0; i < HIT_TEST_COUNT; i++){
+            for(int t = targets.size() - 1; t >= 0; t--){
+                DropTarget target = targets.get(t);
+                target.getHitRect(rect);
+                target.getLocationOnScreen(coordinates);
+                rect.offsetTo(coordinates[0], coordinates[1]);
+                if(rect.contains(xs[i], ys[i])){
+                    linearHits++;
+                    break;
+                }
+            }
+        }
+        long linearNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        index.find(0, 0, coordinates);
+        long rebuildNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for(int i = 0; i < HIT_TEST_COUNT; i++){
+            if(index.find(xs[i], ys[i], coordinates) != null)
+                indexHits++;
+        }
+        long indexNanos = System.nanoTime() - start;
+
+        report("Drop targets, %d targets, %d hit tests", targets.size(), HIT_TEST_COUNT);
+        report("  measured per test: %.0f ns/test, %d hits", (double) linearNanos / HIT_TEST_COUNT, linearHits);
+        report("  cached and gridded: %.0f ns/test, %d hits, %.3f ms to measure",
+                (double) indexNanos / HIT_TEST_COUNT, indexHits, rebuildNanos / 1e6);
+        report("");
+    }
+
+    private void report(String format, Object... args){
+        String line = String.format(Locale.US, format, args);
+        Log.i(TAG, line);
+        mReport.append(line).append('\n');
+    }
+
+
+    /**
+     * Heap usage at a point in time, after a collection.
+     */
+    private static class Snapshot {
+
+        long javaBytes;
+        long nativeBytes;
+
+        static Snapshot take(){
+
+            Runtime runtime = Runtime.getRuntime();
+            for(int i = 0; i < 3; i++){
+                System.gc();
+                System.runFinalization();
+            }
+
+            Snapshot snapshot = new Snapshot();
+            snapshot.javaBytes = runtime.totalMemory() - runtime.freeMemory();
+            snapshot.nativeBytes = Debug.getNativeHeapAllocatedSize();
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+/**
+ * Hands events from the JavaBridge thread to the UI thread.
+ *
+ * Lifecycle events (start/end selection mode, errors, text, range and snapshot replies, runtime ready or failed) are delivered in the order they were posted.
+ * Selection changes are state, so only the latest one is kept, and it's delivered in its place
+ * relative to the lifecycle events. The UI thread drains the mailbox at most once per frame.
+ *
+ * Posting doesn't allocate unless the event queue has to grow.
+ *
+ * @author Brandon Tate
+ */
+public class SelectionEventMailbox implements FrameClock.Callback {
+
+    /** Lifecycle event types. */
+    private static final int EVENT_JS_ERROR = 0;
+    private static final int EVENT_START_SELECTION_MODE = 1;
+    private static final int EVENT_END_SELECTION_MODE = 2;
+    private static final int EVENT_SELECTED_TEXT = 3;
+    private static final int EVENT_SERIALIZED_RANGE = 4;
+    private static final int EVENT_RUNTIME_READY = 5;
+    private static final int EVENT_RUNTIME_FAILED = 6;
+    private static final int EVENT_SELECTION_SNAPSHOT = 7;
+
+    /** Initial size of the event queue. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Receives the drained events. */
+    private final TextSelectionJavascriptInterfaceListener mListener;
+
+    /** Schedules the drain. */
+    private final FrameClock mFrameClock;
+
+    /** Guards everything below that is written by the bridge thread. */
+    private final Object mLock = new Object();
+
+    /** Pending lifecycle events, in order. */
+    private int[] mEventTypes = new int[INITIAL_CAPACITY];
+    private int[] mEventIds = new int[INITIAL_CAPACITY];
+    private long[] mEventSequences = new long[INITIAL_CAPACITY];
+    private String[] mEventArgs = new String[INITIAL_CAPACITY];
+    private String[] mEventExtras = new String[INITIAL_CAPACITY];
+    private int mEventCount = 0;
+
+    /** Latest pending selection change. */
+    private boolean mSelectionPending = false;
+    private String mSelectionPayload;
+
+    /** Number of pending lifecycle events that were posted before the selection change. */
+    private int mSelectionIndex = 0;
+
+    /** Selection changes replaced before they were delivered. */
+    private long mConflatedCount = 0;
+
+    /** UI thread copies, so the listener isn't called under the lock. */
+    private int[] mDrainTypes = new int[INITIAL_CAPACITY];
+    private int[] mDrainIds = new int[INITIAL_CAPACITY];
+    private long[] mDrainSequences = new long[INITIAL_CAPACITY];
+    private String[] mDrainArgs = new String[INITIAL_CAPACITY];
+    private String[] mDrainExtras = new String[INITIAL_CAPACITY];
+
+
+    /**
+     * Constructor accepting the listener. Must be called on the UI thread.
+     * @param listener
+     */
+    public SelectionEventMailbox(TextSelectionJavascriptInterfaceListener listener){
+        mListener = listener;
+        mFrameClock = new FrameClock(this);
+    }
+
+
+    //*****************************************************
+    //*
+    //*		Posting, any thread
+    //*
+    //*****************************************************
+
+    public void postJSError(String error){
+        postEvent(EVENT_JS_ERROR, 0, 0, error);
+    }
+
+    public void postStartSelectionMode(){
+        postEvent(EVENT_START_SELECTION_MODE, 0, 0, null);
+    }
+
+    public void postEndSelectionMode(){
+        postEvent(EVENT_END_SELECTION_MODE, 0, 0, null);
+    }
+
+    public void postSelectedText(int requestId, String text){
+        postEvent(EVENT_SELECTED_TEXT, requestId, 0, text);
+    }
+
+    public void postSerializedRange(int requestId, long sequence, String range){
+        postEvent(EVENT_SERIALIZED_RANGE, requestId, sequence, range);
+    }
+
+    public void postRuntimeReady(){
+        postEvent(EVENT_RUNTIME_READY, 0, 0, null);
+    }
+
+    public void postRuntimeFailed(String url){
+        postEvent(EVENT_RUNTIME_FAILED, 0, 0, url);
+    }
+
+    public void postSelectionSnapshot(int requestId, long sequence, String range, String text){
+        postEvent(EVENT_SELECTION_SNAPSHOT, requestId, sequence, range, text);
+    }
+
+    /**
+     * Replaces the pending selection change, if any.
+     * @param payload
+     */
+    public void postSelectionChanged(String payload){
+
+        synchronized(mLock){
+
+            if(mSelectionPending)
+                mConflatedCount++;
+
+            mSelectionPending = true;
+            mSelectionPayload = payload;
+            mSelectionIndex = mEventCount;
+        }
+
+        mFrameClock.schedule();
+    }
+
+    private void postEvent(int type, int id, long sequence, String arg){
+        postEvent(type, id, sequence, arg, null);
+    }
+
+    private void postEvent(int type, int id, long sequence, String arg, String extra){
+
+        synchronized(mLock){
+
+            if(mEventCount == mEventTypes.length){
+                int[] types = new int[mEventCount * 2];
+                int[] ids = new int[mEventCount * 2];
+                long[] sequences = new long[mEventCount * 2];
+                String[] args = new String[mEventCount * 2];
+                String[] extras = new String[mEventCount * 2];
+                System.arraycopy(mEventTypes, 0, types, 0, mEventCount);
+                System.arraycopy(mEventIds, 0, ids, 0, mEventCount);
+                System.arraycopy(mEventSequences, 0, sequences, 0, mEventCount);
+                System.arraycopy(mEventArgs, 0, args, 0, mEventCount);
+                System.arraycopy(mEventExtras, 0, extras, 0, mEventCount);
+                mEventTypes = types;
+                mEventIds = ids;
+                mEventSequences = sequences;
+                mEventArgs = args;
+                mEventExtras = extras;
+            }
+
+            mEventTypes[mEventCount] = type;
+            mEventIds[mEventCount] = id;
+            mEventSequences[mEventCount] = sequence;
+            mEventArgs[mEventCount] = arg;
+            mEventExtras[mEventCount] = extra;
+            mEventCount++;
+        }
+
+        mFrameClock.schedule();
+    }
+
+    /**
+     * Drops everything pending without delivering it.
+     */
+    public void clear(){
+
+        synchronized(mLock){
+
+            for(int i = 0; i < mEventCount; i++){
+                mEventArgs[i] = null;
+                mEventExtras[i] = null;
+            }
+
+            mEventCount = 0;
+            mSelectionPending = false;
+            mSelectionPayload = null;
+        }
+
+        // A scheduled drain is left alone, it might be for an event posted since
+    }
+
+    /**
+     * Returns the number of selection changes replaced by a newer one before delivery.
+     * @return
+     */
+    public long getConflatedCount(){
+        synchronized(mLock){
+            return mConflatedCount;
+        }
+    }
+
+
+    //*****************************************************
+    //*
+    //*		Draining, UI thread
+    //*
+    //*****************************************************
+
+    @Override
+    public void onFrame(long frameTimeNanos) {
+        drain();
+    }
+
+    /**
+     * Delivers everything pending to the listener.
+     */
+    public void drain(){
+
+        int count;
+        boolean hasSelection;
+        int selectionIndex;
+        String payload;
+
+        synchronized(mLock){
+
+            count = mEventCount;
+
+            if(mDrainTypes.length < count){
+                mDrainTypes = new int[mEventTypes.length];
+                mDrainIds = new int[mEventTypes.length];
+                mDrainSequences = new long[mEventTypes.length];
+                mDrainArgs = new String[mEventTypes.length];
+                mDrainExtras = new String[mEventTypes.length];
+            }
+
+            System.arraycopy(mEventTypes, 0, mDrainTypes, 0, count);
+            System.arraycopy(mEventIds, 0, mDrainIds, 0, count);
+            System.arraycopy(mEventSequences, 0, mDrainSequences, 0, count);
+            System.arraycopy(mEventArgs, 0, mDrainArgs, 0, count);
+            System.arraycopy(mEventExtras, 0, mDrainExtras, 0, count);
+
+            for(int i = 0; i < count; i++){
+                mEventArgs[i] = null;
+                mEventExtras[i] = null;
+            }
+
+            mEventCount = 0;
+
+            hasSelection = mSelectionPending;
+            selectionIndex = mSelectionIndex;
+            payload = mSelectionPayload;
+
+            mSelectionPending = false;
+            mSelectionPayload = null;
+        }
+
+        for(int i = 0; i < count; i++){
+
+            if(hasSelection && i == selectionIndex)
+                mListener.tsjiSelectionChanged(payload);
+
+            deliverEvent(mDrainTypes[i], mDrainIds[i], mDrainSequences[i], mDrainArgs[i], mDrainExtras[i]);
+            mDrainArgs[i] = null;
+            mDrainExtras[i] = null;
+        }
+
+        if(hasSelection && selectionIndex >= count)
+            mListener.tsjiSelectionChanged(payload);
+    }
+
+    private void deliverEvent(int type, int id, long sequence, String arg, String extra){
+
+        switch(type){
+            case EVENT_JS_ERROR:
+                mListener.tsjiJSError(arg);
+                break;
+            case EVENT_START_SELECTION_MODE:
+                mListener.tsjiStartSelectionMode();
+                break;
+            case EVENT_END_SELECTION_MODE:
+                mListener.tsjiEndSelectionMode();
+                break;
+            case EVENT_SELECTED_TEXT:
+                mListener.tsjiSelectedText(id, arg);
+                break;
+            case EVENT_SERIALIZED_RANGE:
+                mListener.tsjiSerializedRange(id, sequence, arg);
+                break;
+            case EVENT_RUNTIME_READY:
+                mListener.tsjiRuntimeReady();
+                break;
+            case EVENT_RUNTIME_FAILED:
+                mListener.tsjiRuntimeFailed(arg);
+                break;
+            case EVENT_SELECTION_SNAPSHOT:
+                mListener.tsjiSelectionSnapshot(id, sequence, arg, extra);
+                break;
+        }
+    }
+}
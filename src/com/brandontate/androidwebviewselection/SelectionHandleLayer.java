@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+import com.blahti.drag.DragLayer;
+import com.blahti.drag.MyAbsoluteLayout;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.util.AttributeSet;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsoluteLayout;
+
+/**
+ * Viewport sized drag layer for the selection handles.
+ *
+ * The layer sits in the web view, which scrolls its children with the content, so it's
+ * translated by the scroll offset to stay over the viewport. Handles are positioned in
+ * viewport coordinates by translation too, so moving one is a render property change
+ * rather than a layout pass.
+ *
+ * Translation needs Honeycomb. Before that, the layer and handles fall back to layout params.
+ *
+ * @author Brandon Tate
+ */
+@SuppressWarnings("deprecation")
+public class SelectionHandleLayer extends DragLayer {
+
+    /** Whether views can be translated. */
+    private static final boolean CAN_TRANSLATE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+
+
+    /**
+     * Used to create the layer from XML.
+     * @param context
+     * @param attrs
+     */
+    public SelectionHandleLayer(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    /**
+     * Keeps the layer over the viewport of its scrolled parent.
+     * @param scrollX
+     * @param scrollY
+     */
+    public void setScroll(int scrollX, int scrollY){
+
+        if(CAN_TRANSLATE){
+            translate(this, scrollX, scrollY);
+            return;
+        }
+
+        ViewGroup.LayoutParams params = getLayoutParams();
+        if(params instanceof AbsoluteLayout.LayoutParams){
+            AbsoluteLayout.LayoutParams absoluteParams = (AbsoluteLayout.LayoutParams) params;
+            if(absoluteParams.x != scrollX || absoluteParams.y != scrollY){
+                absoluteParams.x = scrollX;
+                absoluteParams.y = scrollY;
+                setLayoutParams(absoluteParams);
+            }
+        }
+    }
+
+    /**
+     * Moves a handle to the given viewport position.
+     */
+    @Override
+    protected void moveChild(View v, int left, int top) {
+
+        MyAbsoluteLayout.LayoutParams params = (MyAbsoluteLayout.LayoutParams) v.getLayoutParams();
+
+        if(CAN_TRANSLATE){
+            // Offset from where the handle is laid out
+            translate(v, left - params.x, top - params.y);
+            return;
+        }
+
+        if(params.x != left || params.y != top){
+            params.x = left;
+            params.y = top;
+            v.setLayoutParams(params);
+        }
+    }
+
+    /**
+     * Moves a handle to the given viewport position.
+     * @param handle
+     * @param left
+     * @param top
+     */
+    public void moveHandle(View handle, int left, int top){
+        moveChild(handle, left, top);
+    }
+
+    /**
+     * Returns a handle's left edge in viewport coordinates.
+     * @param handle
+     * @return
+     */
+    public float getHandleX(View handle){
+
+        float x = ((MyAbsoluteLayout.LayoutParams) handle.getLayoutParams()).x;
+        return CAN_TRANSLATE ? x + translationX(handle) : x;
+    }
+
+    /**
+     * Returns a handle's top edge in viewport coordinates.
+     * @param handle
+     * @return
+     */
+    public float getHandleY(View handle){
+
+        float y = ((MyAbsoluteLayout.LayoutParams) handle.getLayoutParams()).y;
+        return CAN_TRANSLATE ? y + translationY(handle) : y;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void translate(View v, float x, float y){
+        v.setTranslationX(x);
+        v.setTranslationY(y);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static float translationX(View v){
+        return v.getTranslationX();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static float translationY(View v){
+        return v.getTranslationY();
+    }
+}
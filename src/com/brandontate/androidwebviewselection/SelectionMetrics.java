@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Touch to handle latency of the selection pipeline.
+ *
+ * Each handle drag goes through four stages: the touch is received by the drag controller,
+ * the javascript command is issued, the page's callback reaches the bridge thread, and the
+ * handles are laid out on the UI thread. The time between each stage is recorded in a
+ * {@link LatencyHistogram}, along with the total.
+ *
+ * Stages are matched up by the command's sequence number, which the page echoes back.
+ * Timestamps use System.nanoTime, which shares its clock with MotionEvent times.
+ *
+ * The cost of injecting the selection runtime into each page is recorded separately, as is the
+ * time the page takes to load and run it, less the time spent fetching it. The first load in
+ * the process is recorded apart from later ones. This only compares load times, it doesn't
+ * show whether the web view reused compiled code.
+ *
+ * @author Brandon Tate
+ */
+public class SelectionMetrics {
+
+    /** Stages. */
+    public static final int STAGE_TOUCH_TO_COMMAND = 0;
+    public static final int STAGE_COMMAND_TO_CALLBACK = 1;
+    public static final int STAGE_CALLBACK_TO_APPLIED = 2;
+    public static final int STAGE_TOUCH_TO_APPLIED = 3;
+
+    /** Number of stages. */
+    public static final int STAGE_COUNT = 4;
+
+    /** One histogram per stage. */
+    private final LatencyHistogram[] mHistograms = {
+        new LatencyHistogram("touch to command"),
+        new LatencyHistogram("command to callback"),
+        new LatencyHistogram("callback to applied"),
+        new LatencyHistogram("touch to applied")
+    };
+
+    /** Runtime injection cost, per page load. */
+    private final LatencyHistogram mInjectionHistogram = new LatencyHistogram("runtime injection");
+
+    /** Page loads that already had the runtime. */
+    private long mInjectionSkippedCount = 0;
+
+    /** Runtime load and run time less fetch time, first load in the process and later ones. */
+    private final LatencyHistogram mFirstLoadHistogram = new LatencyHistogram("runtime load, first");
+    private final LatencyHistogram mLaterLoadHistogram = new LatencyHistogram("runtime load, later");
+
+    /** Runtime loads in the process, across all web views. */
+    private static final AtomicInteger sRuntimeLoadCount = new AtomicInteger();
+
+    /** Number of commands tracked at once. */
+    private static final int TRACKED_COMMANDS = 32;
+
+    /** Oldest touch not yet sent to the page, 0 when not set. UI thread. */
+    private long mPendingTouchNanos = 0;
+
+    /** Stage timestamps of recent commands, indexed by sequence number modulo the size. */
+    private final long[] mSequences = new long[TRACKED_COMMANDS];
+    private final long[] mTouchNanos = new long[TRACKED_COMMANDS];
+    private final long[] mCommandNanos = new long[TRACKED_COMMANDS];
+    private final long[] mCallbackNanos = new long[TRACKED_COMMANDS];
+
+
+    /**
+     * The drag controller received a touch. Only the oldest touch not yet
+     * sent is kept, since that's the one the user is waiting on. UI thread.
+     * @param eventTimeMillis The MotionEvent's event time
+     */
+    public void markTouch(long eventTimeMillis){
+        if(mPendingTouchNanos == 0)
+            mPendingTouchNanos = eventTimeMillis * 1000000L;
+    }
+
+    /**
+     * A handle drag command for the pending touch was sent to the page. UI thread.
+     * @param sequence The command's sequence number
+     */
+    public synchronized void markCommandIssued(long sequence){
+
+        if(mPendingTouchNanos == 0)
+            return;
+
+        int slot = (int) (sequence % TRACKED_COMMANDS);
+        mSequences[slot] = sequence;
+        mTouchNanos[slot] = mPendingTouchNanos;
+        mCommandNanos[slot] = System.nanoTime();
+        mCallbackNanos[slot] = 0;
+
+        mPendingTouchNanos = 0;
+    }
+
+    /**
+     * The page's selection callback for the given command reached the bridge thread.
+     * @param sequence
+     */
+    public synchronized void markCallbackReceived(long sequence){
+
+        int slot = (int) (sequence % TRACKED_COMMANDS);
+        if(sequence >= 0 && mSequences[slot] == sequence && mCallbackNanos[slot] == 0)
+            mCallbackNanos[slot] = System.nanoTime();
+    }
+
+    /**
+     * The handles were laid out for the given command. Records its stages. UI thread.
+     * @param sequence
+     */
+    public synchronized void markApplied(long sequence){
+
+        if(sequence < 0)
+            return;
+
+        int slot = (int) (sequence % TRACKED_COMMANDS);
+        if(mSequences[slot] != sequence || mCallbackNanos[slot] == 0)
+            return;
+
+        long applied = System.nanoTime();
+        long touch = mTouchNanos[slot];
+        long command = mCommandNanos[slot];
+        long callback = mCallbackNanos[slot];
+
+        mHistograms[STAGE_TOUCH_TO_COMMAND].record(command - touch);
+        mHistograms[STAGE_COMMAND_TO_CALLBACK].record(callback - command);
+        mHistograms[STAGE_CALLBACK_TO_APPLIED].record(applied - callback);
+        mHistograms[STAGE_TOUCH_TO_APPLIED].record(applied - touch);
+
+        // Only count each command once
+        mSequences[slot] = -1;
+    }
+
+    /**
+     * The selection runtime was injected into a page. UI thread.
+     * @param nanos Time the injection took
+     * @param installed False if the page already had the runtime
+     */
+    public synchronized void recordInjection(long nanos, boolean installed){
+        mInjectionHistogram.record(nanos);
+        if(!installed)
+            mInjectionSkippedCount++;
+    }
+
+    /**
+     * Returns the histogram of runtime injection costs.
+     * @return
+     */
+    public LatencyHistogram getInjectionHistogram(){
+        return mInjectionHistogram;
+    }
+
+    /**
+     * The page loaded and ran the selection runtime. Any thread.
+     * @param nanos Time from adding the script to the page until it ran, less the time to fetch it
+     */
+    public void recordRuntimeLoad(long nanos){
+        if(sRuntimeLoadCount.getAndIncrement() == 0)
+            mFirstLoadHistogram.record(nanos);
+        else
+            mLaterLoadHistogram.record(nanos);
+    }
+
+    /**
+     * Returns the histogram of runtime load times.
+     * @param first True for the first load in the process, false for later ones
+     * @return
+     */
+    public LatencyHistogram getRuntimeLoadHistogram(boolean first){
+        return first ? mFirstLoadHistogram : mLaterLoadHistogram;
+    }
+
+    /**
+     * Returns the number of page loads that already had the runtime.
+     * @return
+     */
+    public synchronized long getInjectionSkippedCount(){
+        return mInjectionSkippedCount;
+    }
+
+    /**
+     * Forgets the pending touch, for when selection ends before it was sent. UI thread.
+     */
+    public void cancel(){
+        mPendingTouchNanos = 0;
+    }
+
+    /**
+     * Returns the histogram for the given stage.
+     * @param stage One of the STAGE_ constants
+     * @return
+     */
+    public LatencyHistogram getHistogram(int stage){
+        return mHistograms[stage];
+    }
+
+    /**
+     * Clears all histograms.
+     */
+    public synchronized void reset(){
+        for(int i = 0; i < STAGE_COUNT; i++)
+            mHistograms[i].reset();
+        mInjectionHistogram.reset();
+        mInjectionSkippedCount = 0;
+        mFirstLoadHistogram.reset();
+        mLaterLoadHistogram.reset();
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < STAGE_COUNT; i++)
+            builder.append(mHistograms[i]).append('\n');
+        builder.append(mInjectionHistogram).append(" skipped=").append(getInjectionSkippedCount()).append('\n');
+        builder.append(mFirstLoadHistogram).append('\n');
+        builder.append(mLaterLoadHistogram).append('\n');
+        return builder.toString();
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+/**
+ * Decodes the packed selection record sent by android.selection.js.
+ *
+ * The record is a comma separated list of numbers in a fixed order:
+ * <pre>
+ * version,sequence,contentWidth,handleLeft,handleTop,handleRight,handleBottom,menuLeft,menuTop,menuRight,menuBottom,textLength
+ * </pre>
+ * Handle bounds are in page coordinates, menu bounds are relative to the viewport, both in CSS pixels.
+ * The selected text itself isn't part of the record, only its length in characters, or -1 when
+ * the page didn't count it.
+ *
+ * Decoding writes into the fields of this instance so it can be reused for every update
+ * without allocating. Has no Android dependencies.
+ *
+ * @author Brandon Tate
+ */
+public class SelectionPayload {
+
+    /** The record version this codec understands. */
+    public static final int VERSION = 2;
+
+    /** Number of fields in a version 2 record. */
+    public static final int FIELD_COUNT = 12;
+
+    /** Field indexes. */
+    private static final int FIELD_VERSION = 0;
+    private static final int FIELD_SEQUENCE = 1;
+    private static final int FIELD_CONTENT_WIDTH = 2;
+    private static final int FIELD_HANDLE_LEFT = 3;
+    private static final int FIELD_HANDLE_TOP = 4;
+    private static final int FIELD_HANDLE_RIGHT = 5;
+    private static final int FIELD_HANDLE_BOTTOM = 6;
+    private static final int FIELD_MENU_LEFT = 7;
+    private static final int FIELD_MENU_TOP = 8;
+    private static final int FIELD_MENU_RIGHT = 9;
+    private static final int FIELD_MENU_BOTTOM = 10;
+    private static final int FIELD_TEXT_LENGTH = 11;
+
+    /** Decoded values, indexed by field. */
+    private final double[] mFields = new double[FIELD_COUNT];
+
+    /** Whether the last decode succeeded. */
+    private boolean mValid = false;
+
+
+    /**
+     * Decodes the given record into this payload.
+     * @param packed
+     * @return True if the record was valid. On failure the payload is left invalid.
+     */
+    public boolean decode(CharSequence packed){
+
+        mValid = false;
+
+        if(packed == null)
+            return false;
+
+        int length = packed.length();
+        int field = 0;
+        int pos = 0;
+
+        while(pos <= length && field < FIELD_COUNT){
+
+            int end = pos;
+            while(end < length && packed.charAt(end) != ',')
+                end++;
+
+            if(!parseNumber(packed, pos, end, field))
+                return false;
+
+            field++;
+            pos = end + 1;
+        }
+
+        // Wrong field count or version
+        if(field != FIELD_COUNT || pos <= length || (int) mFields[FIELD_VERSION] != VERSION)
+            return false;
+
+        mValid = true;
+        return true;
+    }
+
+    /**
+     * Reads just the sequence number of a record, without decoding the rest.
+     * @param packed
+     * @return The sequence number, or -1 if it can't be read.
+     */
+    public static long peekSequence(CharSequence packed){
+
+        if(packed == null)
+            return -1;
+
+        int length = packed.length();
+        int i = 0;
+
+        // Skip the version
+        while(i < length && packed.charAt(i) != ',')
+            i++;
+        i++;
+
+        long sequence = 0;
+        int digits = 0;
+        while(i < length && isDigit(packed.charAt(i))){
+            sequence = sequence * 10 + (packed.charAt(i) - '0');
+            digits++;
+            i++;
+        }
+
+        if(digits == 0 || (i < length && packed.charAt(i) != ','))
+            return -1;
+
+        return sequence;
+    }
+
+    /**
+     * Copies another payload into this one.
+     * @param other
+     */
+    public void set(SelectionPayload other){
+        System.arraycopy(other.mFields, 0, mFields, 0, FIELD_COUNT);
+        mValid = other.mValid;
+    }
+
+    /**
+     * Parses a decimal number, with optional sign, fraction and exponent, into the given field.
+     * @return False if the text isn't a number.
+     */
+    private boolean parseNumber(CharSequence s, int start, int end, int field){
+
+        int i = start;
+        boolean negative = false;
+
+        if(i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')){
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+
+        double value = 0;
+        int digits = 0;
+
+        while(i < end && isDigit(s.charAt(i))){
+            value = value * 10 + (s.charAt(i) - '0');
+            digits++;
+            i++;
+        }
+
+        if(i < end && s.charAt(i) == '.'){
+            i++;
+            double scale = 0.1;
+            while(i < end && isDigit(s.charAt(i))){
+                value += (s.charAt(i) - '0') * scale;
+                scale /= 10;
+                digits++;
+                i++;
+            }
+        }
+
+        if(digits == 0)
+            return false;
+
+        if(i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E')){
+            i++;
+            boolean negativeExponent = false;
+            if(i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')){
+                negativeExponent = s.charAt(i) == '-';
+                i++;
+            }
+
+            int exponent = 0;
+            int exponentDigits = 0;
+            while(i < end && isDigit(s.charAt(i))){
+                exponent = exponent * 10 + (s.charAt(i) - '0');
+                exponentDigits++;
+                i++;
+            }
+
+            if(exponentDigits == 0)
+                return false;
+
+            value *= Math.pow(10, negativeExponent ? -exponent : exponent);
+        }
+
+        if(i != end)
+            return false;
+
+        mFields[field] = negative ? -value : value;
+        return true;
+    }
+
+    private static boolean isDigit(char c){
+        return c >= '0' && c <= '9';
+    }
+
+
+    //*****************************************************
+    //*
+    //*		Accessors
+    //*
+    //*****************************************************
+
+    /**
+     * Whether the last decode succeeded.
+     * @return
+     */
+    public boolean isValid(){
+        return mValid;
+    }
+
+    public int getVersion(){
+        return (int) mFields[FIELD_VERSION];
+    }
+
+    public long getSequence(){
+        return (long) mFields[FIELD_SEQUENCE];
+    }
+
+    public float getContentWidth(){
+        return (float) mFields[FIELD_CONTENT_WIDTH];
+    }
+
+    public float getHandleLeft(){
+        return (float) mFields[FIELD_HANDLE_LEFT];
+    }
+
+    public float getHandleTop(){
+        return (float) mFields[FIELD_HANDLE_TOP];
+    }
+
+    public float getHandleRight(){
+        return (float) mFields[FIELD_HANDLE_RIGHT];
+    }
+
+    public float getHandleBottom(){
+        return (float) mFields[FIELD_HANDLE_BOTTOM];
+    }
+
+    public float getMenuLeft(){
+        return (float) mFields[FIELD_MENU_LEFT];
+    }
+
+    public float getMenuTop(){
+        return (float) mFields[FIELD_MENU_TOP];
+    }
+
+    public float getMenuRight(){
+        return (float) mFields[FIELD_MENU_RIGHT];
+    }
+
+    public float getMenuBottom(){
+        return (float) mFields[FIELD_MENU_BOTTOM];
+    }
+
+    public int getTextLength(){
+        return (int) mFields[FIELD_TEXT_LENGTH];
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+import android.webkit.ValueCallback;
+import android.webkit.WebView;
+
+/**
+ * Installs the selection runtime into whatever page the web view loads.
+ *
+ * The runtime asset is read once per process and kept in memory. It's injected when a page
+ * finishes loading, wrapped in a guard so pages that already include android.selection.js
+ * keep their copy. Each page load is injected at most once.
+ *
+ * Where requests can be intercepted, the page gets a script tag pointing at the runtime on the
+ * {@link WebResourceServer}, at a url that only changes with the runtime's content, so the web
+ * view's cache can serve it to later page loads. Otherwise the runtime source is evaluated
+ * directly.
+ *
+ * The script tag loads asynchronously, so the page calls TextSelection.runtimeReady once the
+ * runtime is installed, or right away if the page has its own copy. Commands sent before then
+ * would fail, so the owner holds them until it's called. If the tag can't load, e.g. the page's
+ * content security policy blocks it, the page calls TextSelection.runtimeFailed instead and the
+ * owner falls back to {@link #injectSource}.
+ *
+ * Injection cost is reported to {@link SelectionMetrics}. On KitKat and up it covers the
+ * evaluation of the injection script, before that only the call that hands it to the page.
+ * Load time of the runtime itself is reported by the page once the script tag has run.
+ *
+ * All methods except {@link #getRuntimeScript} must be called on the UI thread.
+ *
+ * @author Brandon Tate
+ */
+public class SelectionRuntimeInjector {
+
+    /** The logging tag. */
+    private static final String TAG = "SelectionRuntimeInjector";
+
+    /** The runtime asset. */
+    public static final String RUNTIME_ASSET = "android.selection.js";
+
+    /** Results of the injection script. */
+    private static final String RESULT_INSTALLED = "installed";
+    private static final String RESULT_PRESENT = "present";
+
+    /** Lock for the script cache. */
+    private static final Object sCacheLock = new Object();
+
+    /** The runtime and the guarded injection scripts, read once per process. */
+    private static String sRuntimeScript;
+    private static String sInjectionScript;
+    private static String sSourceScript;
+
+    /** Versioned url of the runtime. */
+    private static String sRuntimeUrl;
+
+    /** The web view to inject into. */
+    private final WebView mWebView;
+
+    /** Injection cost instrumentation, may be null. */
+    private SelectionMetrics mMetrics;
+
+    /** Url of the page load last injected, null if the current load hasn't been. */
+    private String mInjectedUrl;
+
+
+    /**
+     * Constructor accepting the web view to inject into.
+     * @param webView
+     */
+    public SelectionRuntimeInjector(WebView webView){
+        mWebView = webView;
+    }
+
+    /**
+     * Sets the metrics injection cost is reported to.
+     * @param metrics
+     */
+    public void setSelectionMetrics(SelectionMetrics metrics){
+        mMetrics = metrics;
+    }
+
+    /**
+     * Returns the runtime source, reading it from the assets the first time. Any thread.
+     * @param context
+     * @return The script, or null if the asset can't be read
+     */
+    public static String getRuntimeScript(Context context){
+
+        synchronized(sCacheLock){
+
+            if(sRuntimeScript == null){
+
+                String runtime = readAsset(context, RUNTIME_ASSET);
+                if(runtime == null)
+                    return null;
+
+                CRC32 crc = new CRC32();
+                crc.update(runtime.getBytes(Charset.forName("UTF-8")));
+                String url = WebResourceServer.ASSETS_URL + RUNTIME_ASSET + "?v=" + Long.toHexString(crc.getValue());
+
+                // Leave the page's own copy alone. The runtime declares its namespace with var,
+                // so the source has to run at the top level rather than inside a function.
+                String source = "if(window.android && window.android.selection){ window.TextSelection.runtimeReady(); '" + RESULT_PRESENT + "'; }" +
+                        "else{\n" + runtime + "\nwindow.TextSelection.runtimeReady(); '" + RESULT_INSTALLED + "'; }";
+
+                String injection;
+                if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB){
+                    injection = "if(window.android && window.android.selection){ window.TextSelection.runtimeReady(); '" + RESULT_PRESENT + "'; }" +
+                            "else{ (function(){" +
+                            "var url = '" + url + "';" +
+                            "var now = function(){ return (window.performance && performance.now) ? performance.now() : Date.now(); };" +
+                            "var start = now();" +
+                            "var script = document.createElement('script');" +
+                            "script.src = url;" +
+                            "script.onload = function(){" +
+                            "  var load = now() - start, fetch = 0;" +
+                            "  if(window.performance && performance.getEntriesByName){" +
+                            "    var entries = performance.getEntriesByName(url);" +
+                            "    if(entries.length > 0){ fetch = entries[entries.length - 1].responseEnd - entries[entries.length - 1].startTime; }" +
+                            "  }" +
+                            "  window.TextSelection.runtimeLoaded(load, fetch);" +
+                            "  window.TextSelection.runtimeReady();" +
+                            "};" +
+                            "script.onerror = function(){ window.TextSelection.runtimeFailed(url); };" +
+                            "try{ (document.head || document.documentElement).appendChild(script); }" +
+                            "catch(err){ window.TextSelection.runtimeFailed(url); }" +
+                            "})(); '" + RESULT_INSTALLED + "'; }";
+                }
+                else{
+                    // No request interception, so evaluate the source
+                    injection = source;
+                }
+
+                sRuntimeScript = runtime;
+                sInjectionScript = injection;
+                sSourceScript = source;
+                sRuntimeUrl = url;
+            }
+
+            return sRuntimeScript;
+        }
+    }
+
+    /**
+     * Returns the versioned url the runtime is served at. Any thread.
+     * @param context
+     * @return The url, or null if the asset can't be read
+     */
+    public static String getRuntimeUrl(Context context){
+        synchronized(sCacheLock){
+            return (getRuntimeScript(context) != null) ? sRuntimeUrl : null;
+        }
+    }
+
+    /**
+     * Forgets the injection state, for a new page load.
+     */
+    public void reset(){
+        mInjectedUrl = null;
+    }
+
+    /**
+     * Returns whether the current page load has been injected.
+     * @return
+     */
+    public boolean isInjected(){
+        return mInjectedUrl != null;
+    }
+
+    /**
+     * Injects the runtime into the current page, unless it already was for this load.
+     * @param url The url of the page that finished loading
+     * @return False if the runtime can't be read, so the page will never call runtimeReady
+     */
+    public boolean inject(String url){
+
+        if(url == null)
+            url = "";
+
+        if(url.equals(mInjectedUrl))
+            return true;
+
+        long start = System.nanoTime();
+
+        if(getRuntimeScript(mWebView.getContext()) == null)
+            return false;
+
+        mInjectedUrl = url;
+        run(sInjectionScript, start);
+        return true;
+    }
+
+    /**
+     * Evaluates the runtime source in the current page, for when the script tag couldn't load.
+     * The page calls runtimeReady once it's installed.
+     * @return False if the runtime can't be read
+     */
+    public boolean injectSource(){
+
+        long start = System.nanoTime();
+
+        if(getRuntimeScript(mWebView.getContext()) == null)
+            return false;
+
+        run(sSourceScript, start);
+        return true;
+    }
+
+    private void run(String script, long start){
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT){
+            evaluate(script, start);
+        }
+        else{
+            mWebView.loadUrl("javascript:" + script);
+
+            if(mMetrics != null)
+                mMetrics.recordInjection(System.nanoTime() - start, true);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void evaluate(String script, final long start){
+
+        mWebView.evaluateJavascript(script, new ValueCallback<String>(){
+            @Override
+            public void onReceiveValue(String value) {
+
+                boolean installed = value != null && value.contains(RESULT_INSTALLED);
+
+                if(mMetrics != null)
+                    mMetrics.recordInjection(System.nanoTime() - start, installed);
+            }
+        });
+    }
+
+    /**
+     * Reads an asset as UTF-8 text.
+     * @return The text, or null on failure
+     */
+    private static String readAsset(Context context, String name){
+
+        Reader reader = null;
+
+        try{
+            InputStream stream = context.getAssets().open(name);
+            reader = new InputStreamReader(stream, "UTF-8");
+
+            StringBuilder builder = new StringBuilder(stream.available() + 16);
+            char[] buffer = new char[4096];
+            int count;
+            while((count = reader.read(buffer)) != -1)
+                builder.append(buffer, 0, count);
+
+            return builder.toString();
+        }
+        catch(IOException e){
+            Log.e(TAG, "Unable to read " + name, e);
+            return null;
+        }
+        finally{
+            if(reader != null){
+                try{
+                    reader.close();
+                }
+                catch(IOException e){
+
+                }
+            }
+        }
+    }
+}
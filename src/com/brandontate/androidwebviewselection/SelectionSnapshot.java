@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+import android.graphics.Rect;
+
+/**
+ * The selection as it was when an action was started. Immutable, so it can be handed to
+ * another thread.
+ *
+ * @author Brandon Tate
+ */
+public final class SelectionSnapshot {
+
+    /** Sequence number of the selection update the snapshot was taken at. */
+    private final long mSequence;
+
+    /** The selected text. */
+    private final String mText;
+
+    /** The rangy serialized range, may be null. */
+    private final String mRange;
+
+    /** The selection bounds in content pixels. */
+    private final int mLeft;
+    private final int mTop;
+    private final int mRight;
+    private final int mBottom;
+
+
+    /**
+     * Constructor.
+     * @param sequence Sequence number of the selection update
+     * @param text The selected text
+     * @param range The serialized range, may be null
+     * @param bounds The selection bounds in content pixels, copied. May be null.
+     */
+    public SelectionSnapshot(long sequence, String text, String range, Rect bounds){
+        mSequence = sequence;
+        mText = (text != null) ? text : "";
+        mRange = range;
+
+        if(bounds != null){
+            mLeft = bounds.left;
+            mTop = bounds.top;
+            mRight = bounds.right;
+            mBottom = bounds.bottom;
+        }
+        else{
+            mLeft = mTop = mRight = mBottom = 0;
+        }
+    }
+
+    public long getSequence(){
+        return mSequence;
+    }
+
+    public String getText(){
+        return mText;
+    }
+
+    public String getRange(){
+        return mRange;
+    }
+
+    /**
+     * Copies the selection bounds, in content pixels.
+     * @param outRect
+     */
+    public void getBounds(Rect outRect){
+        outRect.set(mLeft, mTop, mRight, mBottom);
+    }
+
+    @Override
+    public String toString(){
+        return "SelectionSnapshot[" + mSequence + ", " + mText.length() + " chars]";
+    }
+}
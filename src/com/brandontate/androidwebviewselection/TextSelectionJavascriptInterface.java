@@ -1,7 +1,8 @@
 package com.brandontate.androidwebviewselection;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import android.content.Context;
-import android.os.Handler;
 import android.util.Log;
 import android.webkit.JavascriptInterface;
 
@@ -25,8 +26,23 @@ public class TextSelectionJavascriptInterface {
 	/** The context. */
 	Context mContext;
     
-    // Need handler for callbacks to the UI thread
-    final Handler mHandler = new Handler();
+    /** Hands callbacks to the UI thread, at most once per frame. */
+    SelectionEventMailbox mMailbox;
+
+    /** Latency instrumentation, may be null. */
+    SelectionMetrics mMetrics;
+
+    /** Newest selection sequence number accepted. Written on the bridge thread only. */
+    private volatile long mNewestSequence = 0;
+
+    /** Selection updates from before this sequence number are discarded. Written on the UI thread. */
+    private volatile long mDiscardBefore = 0;
+
+    /** Selection updates dropped for being older than the newest or discarded. */
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    /** Selection updates dropped because their sequence number couldn't be read. */
+    private volatile long mMalformedCount = 0;
 	
 	
 	/**
@@ -45,6 +61,15 @@ public class TextSelectionJavascriptInterface {
 	public TextSelectionJavascriptInterface(Context c, TextSelectionJavascriptInterfaceListener mListener){
 		this.mContext = c;
 		this.mListener = mListener;
+		this.mMailbox = new SelectionEventMailbox(mListener);
+	}
+	
+	/**
+	 * Sets the metrics that selection callbacks are reported to.
+	 * @param metrics
+	 */
+	public void setSelectionMetrics(SelectionMetrics metrics){
+		this.mMetrics = metrics;
 	}
 	
 	/**
@@ -54,13 +79,7 @@ public class TextSelectionJavascriptInterface {
     @JavascriptInterface
 	public void jsError(final String error){
 		if(this.mListener != null){
-            
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mListener.tsjiJSError(error);
-                }
-            });
+            mMailbox.postJSError(error);
 		}
 	}
 	
@@ -80,13 +99,7 @@ public class TextSelectionJavascriptInterface {
 	public void startSelectionMode(){
 		
 		if(this.mListener != null)
-            
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mListener.tsjiStartSelectionMode();
-                }
-            });
+            mMailbox.postStartSelectionMode();
 	}
 	
 	/**
@@ -96,47 +109,159 @@ public class TextSelectionJavascriptInterface {
 	public void endSelectionMode(){
 		
 		if(this.mListener != null)
-            
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mListener.tsjiEndSelectionMode();
-                }
-            });
+            mMailbox.postEndSelectionMode();
 	}
     
 	/**
 	 * Show the context menu
-	 * @param range
-	 * @param text
-	 * @param menuBounds
+	 * @param payload Packed selection record, see {@link SelectionPayload}
 	 */
     @JavascriptInterface
-	public void selectionChanged(final String range, final String text, final String handleBounds, final String menuBounds){
-        Log.i("BTSelectionWebView", "handleBounds: " + handleBounds);
-        Log.i("BTSelectionWebView", "menuBounds: " + menuBounds);
+	public void selectionChanged(final String payload){
+		long sequence = SelectionPayload.peekSequence(payload);
+		if(sequence < 0){
+			mMalformedCount++;
+			Log.e(TAG, "Invalid selection payload: " + payload);
+			return;
+		}
+
+		// Drop late results from commands that were already superseded
+		if(sequence < mNewestSequence || sequence < mDiscardBefore){
+			mDroppedCount.incrementAndGet();
+			return;
+		}
+		mNewestSequence = sequence;
+
+		if(this.mMetrics != null)
+            mMetrics.markCallbackReceived(sequence);
+
 		if(this.mListener != null)  {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mListener.tsjiSelectionChanged(range, text, handleBounds, menuBounds);
-                }
-            });
+            mMailbox.postSelectionChanged(payload);
         }
         else
             Log.i("BTSelectionWebView", "mListener null");
 		
 	}
     
+	/**
+	 * Receives the selected text asked for with android.selection.getSelectedText.
+	 * @param requestId
+	 * @param text
+	 */
     @JavascriptInterface
-	public void setContentWidth(final float contentWidth){
+	public void selectedText(final int requestId, final String text){
 		if(this.mListener != null)
-            
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mListener.tsjiSetContentWidth(contentWidth);
-                }
-            });
+            mMailbox.postSelectedText(requestId, text);
 	}
+	
+	/**
+	 * Receives the serialized range asked for with android.selection.getSerializedRange.
+	 * @param requestId
+	 * @param sequence
+	 * @param range
+	 */
+    @JavascriptInterface
+	public void serializedRange(final int requestId, final long sequence, final String range){
+		if(this.mListener != null)
+            mMailbox.postSerializedRange(requestId, sequence, range);
+	}
+	
+	/**
+	 * Receives the range and text asked for with android.selection.getSnapshot.
+	 * @param requestId
+	 * @param sequence
+	 * @param range
+	 * @param text
+	 */
+    @JavascriptInterface
+	public void selectionSnapshot(final int requestId, final long sequence, final String range, final String text){
+		if(this.mListener != null)
+            mMailbox.postSelectionSnapshot(requestId, sequence, range, text);
+	}
+    
+	/**
+	 * The injected runtime finished loading.
+	 * @param loadMillis Time from adding the script to the page until it ran
+	 * @param fetchMillis Part of that spent fetching it, 0 if unknown
+	 */
+    @JavascriptInterface
+	public void runtimeLoaded(final double loadMillis, final double fetchMillis){
+		if(this.mMetrics != null)
+            mMetrics.recordRuntimeLoad((long) (Math.max(0, loadMillis - fetchMillis) * 1000000));
+	}
+    
+	/**
+	 * The runtime is installed in the page, whether injected or the page's own copy.
+	 */
+    @JavascriptInterface
+	public void runtimeReady(){
+		if(this.mListener != null)
+            mMailbox.postRuntimeReady();
+	}
+    
+	/**
+	 * The injected runtime couldn't be loaded from its url.
+	 * @param url
+	 */
+    @JavascriptInterface
+	public void runtimeFailed(final String url){
+		if(this.mListener != null)
+            mMailbox.postRuntimeFailed(url);
+	}
+    
+    /**
+     * Drops callbacks that haven't reached the listener yet, e.g. from a page being unloaded.
+     */
+    public void clearPendingEvents(){
+        if(mMailbox != null)
+            mMailbox.clear();
+    }
+    
+    /**
+     * Discards selection changes from commands before the given one, e.g. once the selection
+     * is cleared. Call on the UI thread.
+     * @param sequence
+     */
+    public void discardBefore(long sequence){
+        mDiscardBefore = sequence;
+    }
+
+    /**
+     * Checks a selection change that was accepted before {@link #discardBefore} was called.
+     * Counts it as dropped if it's discarded now. UI thread.
+     * @param sequence
+     * @return
+     */
+    public boolean isDiscarded(long sequence){
+        if(sequence >= mDiscardBefore)
+            return false;
+
+        mDroppedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns the number of selection changes dropped because a newer one was already accepted,
+     * or they were discarded.
+     * @return
+     */
+    public long getDroppedSelectionCount(){
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Returns the number of selection changes dropped because they couldn't be read.
+     * @return
+     */
+    public long getMalformedSelectionCount(){
+        return mMalformedCount;
+    }
+    
+    /**
+     * Returns the number of selection changes replaced by a newer one before reaching the UI thread.
+     * @return
+     */
+    public long getConflatedSelectionCount(){
+        return (mMailbox != null) ? mMailbox.getConflatedCount() : 0;
+    }
 }
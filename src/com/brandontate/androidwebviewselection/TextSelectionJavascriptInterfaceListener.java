@@ -41,20 +41,45 @@ public interface TextSelectionJavascriptInterfaceListener {
 	public abstract void tsjiEndSelectionMode();
 	
 	/**
-	 * Tells the listener to show the context menu for the given range and selected text.
-	 * The bounds parameter contains a json string representing the selection bounds in the form 
-	 * { 'left': leftPoint, 'top': topPoint, 'right': rightPoint, 'bottom': bottomPoint }
-	 * @param range
-	 * @param text
-	 * @param handleBounds
-	 * @param menuBounds
+	 * Tells the listener to show the context menu for the current selection.
+	 * The payload is a packed record of the content width, handle bounds, menu bounds and
+	 * selected text length, decoded with {@link SelectionPayload}.
+	 * @param payload
 	 */
-	public abstract void tsjiSelectionChanged(String range, String text, String handleBounds, String menuBounds);
+	public abstract void tsjiSelectionChanged(String payload);
 	
 	/**
-	 * Sends the content width to the listener.  
-	 * Necessary because Android web views don't allow you to get the content width.
-	 * @param contentWidth
+	 * Sends the selected text requested with the given id.
+	 * @param requestId
+	 * @param text The text, or null if it couldn't be read
 	 */
-	public abstract void tsjiSetContentWidth(float contentWidth);
+	public abstract void tsjiSelectedText(int requestId, String text);
+	
+	/**
+	 * Sends the serialized range requested with the given id.
+	 * @param requestId
+	 * @param sequence Sequence number of the selection the range describes
+	 * @param range The rangy serialized range, or null if there's no selection
+	 */
+	public abstract void tsjiSerializedRange(int requestId, long sequence, String range);
+	
+	/**
+	 * Sends the serialized range and text requested together with the given id.
+	 * @param requestId
+	 * @param sequence Sequence number of the selection they describe
+	 * @param range The rangy serialized range, or null if there's no selection
+	 * @param text The selected text, or null if it couldn't be read
+	 */
+	public abstract void tsjiSelectionSnapshot(int requestId, long sequence, String range, String text);
+	
+	/**
+	 * The selection runtime is installed in the page and can take commands.
+	 */
+	public abstract void tsjiRuntimeReady();
+	
+	/**
+	 * The page couldn't load the injected runtime from its url.
+	 * @param url
+	 */
+	public abstract void tsjiRuntimeFailed(String url);
 }
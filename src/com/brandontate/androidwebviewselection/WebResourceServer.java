@@ -0,0 +1,659 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+import android.webkit.WebResourceResponse;
+
+/**
+ * Serves page content and scripts to the web view through request interception.
+ *
+ * Requests to {@link #BASE_URL} are answered from the app instead of the network:
+ * <ul>
+ * <li>{@link #ASSETS_URL} serves the assets folder. A precompressed <code>name.gz</code> is used
+ * when present and inflated as it's read. Otherwise assets stored uncompressed in the APK are
+ * memory mapped, and compressed ones are streamed.</li>
+ * <li>Directories registered with {@link #registerDirectory} are served under their own path,
+ * with each file memory mapped.</li>
+ * </ul>
+ * Bodies are always streamed, so a document is never copied onto the Java heap. Mappings are
+ * kept for a few recently served files, up to {@link #MAPPING_CACHE_BYTES} in all, so repeat
+ * loads don't go back to disk. A file's mapping is reused while its length and modification
+ * time are unchanged.
+ *
+ * Only pages served from {@link #BASE_URL} and top level navigations can load app content, so
+ * other sites open in the web view can't read it. Files added with {@link #addPublicAsset},
+ * such as the injected selection runtime, can be loaded by any page. Refused requests get an
+ * empty 403 from Lollipop on, and an empty body before.
+ *
+ * Responses carry a MIME type from the file extension, and from Lollipop on, cache headers, a
+ * Last-Modified date and an ETag. Every response is a full 200, since intercepted responses
+ * can't be redirects or not modified; revalidation is left to the web view's cache. Urls with a
+ * {@link #VERSION_PARAMETER} only change when their content does, so they're cacheable for good.
+ * Text is only given an encoding when it starts with a byte order mark, otherwise the web view
+ * works it out from the document as it would for any server that doesn't send a charset.
+ * Thread safe, {@link #serve} is called on the web view's IO thread.
+ *
+ * @author Brandon Tate
+ */
+public class WebResourceServer {
+
+    /** The logging tag. */
+    private static final String TAG = "WebResourceServer";
+
+    /** Origin served by the app. Reserved for this use, it never reaches the network. */
+    public static final String BASE_URL = "https://appassets.androidplatform.net/";
+
+    /** Path of the assets folder. */
+    public static final String ASSETS_PATH = "assets/";
+
+    /** Url of the assets folder. */
+    public static final String ASSETS_URL = BASE_URL + ASSETS_PATH;
+
+    /** Suffix of precompressed assets. */
+    private static final String GZIP_SUFFIX = ".gz";
+
+    /** Query parameter marking a url whose content never changes. */
+    public static final String VERSION_PARAMETER = "v";
+
+    /** How long the web view may reuse a response without asking again, in seconds. */
+    private static final int MAX_AGE_SECONDS = 60 * 60;
+
+    /** How long versioned responses may be reused, a year. */
+    private static final int VERSIONED_MAX_AGE_SECONDS = 365 * 24 * 60 * 60;
+
+    /** Number of mappings kept. */
+    private static final int MAPPING_CACHE_SIZE = 16;
+
+    /** Total bytes of mappings kept. Larger files are mapped for each request. */
+    private static final long MAPPING_CACHE_BYTES = 16 * 1024 * 1024;
+
+    /** MIME types by extension, for the ones MimeTypeMap doesn't know on every version. */
+    private static final HashMap<String, String> MIME_TYPES = new HashMap<String, String>();
+    static {
+        MIME_TYPES.put("html", "text/html");
+        MIME_TYPES.put("htm", "text/html");
+        MIME_TYPES.put("xhtml", "application/xhtml+xml");
+        MIME_TYPES.put("js", "application/javascript");
+        MIME_TYPES.put("css", "text/css");
+        MIME_TYPES.put("json", "application/json");
+        MIME_TYPES.put("svg", "image/svg+xml");
+        MIME_TYPES.put("txt", "text/plain");
+        MIME_TYPES.put("xml", "text/xml");
+        MIME_TYPES.put("png", "image/png");
+        MIME_TYPES.put("jpg", "image/jpeg");
+        MIME_TYPES.put("jpeg", "image/jpeg");
+        MIME_TYPES.put("gif", "image/gif");
+        MIME_TYPES.put("webp", "image/webp");
+        MIME_TYPES.put("woff", "font/woff");
+        MIME_TYPES.put("woff2", "font/woff2");
+        MIME_TYPES.put("ttf", "font/ttf");
+    }
+
+    /** The assets. */
+    private final AssetManager mAssets;
+
+    /** Last modified time of the assets, the install or update time of the app. */
+    private final long mAssetsLastModified;
+
+    /** Registered directories by path prefix. */
+    private final HashMap<String, File> mDirectories = new HashMap<String, File>();
+
+    /** Paths any page may load. */
+    private final HashSet<String> mPublicPaths = new HashSet<String>();
+
+    /** Recent mappings by asset name or file path, least recently used first. */
+    private final LinkedHashMap<String, Mapping> mMappings = new LinkedHashMap<String, Mapping>(MAPPING_CACHE_SIZE, 0.75f, true);
+
+    /** Requests served. */
+    private long mServedCount = 0;
+
+    /** Requests served from a cached mapping. */
+    private long mMappingHitCount = 0;
+
+    /** Requests refused because the page wasn't served by the app. */
+    private long mRefusedCount = 0;
+
+    /** Total bytes of the cached mappings. */
+    private long mMappingBytes = 0;
+
+
+    /**
+     * Constructor accepting the context to read assets from.
+     * @param context
+     */
+    public WebResourceServer(Context context){
+
+        mAssets = context.getAssets();
+
+        long lastModified = 0;
+        try{
+            lastModified = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        }
+        catch(PackageManager.NameNotFoundException e){
+
+        }
+        mAssetsLastModified = lastModified;
+    }
+
+    /**
+     * Serves the files of a directory under the given path, e.g. a path of "docs" serves
+     * <code>directory/a.html</code> at <code>BASE_URL + "docs/a.html"</code>.
+     * @param path
+     * @param directory
+     */
+    public void registerDirectory(String path, File directory){
+        synchronized(mDirectories){
+            mDirectories.put(trimSlashes(path), directory);
+        }
+    }
+
+    /**
+     * Lets any page load an asset, e.g. a script injected into pages from other sites.
+     * @param name The asset name, relative to the assets folder
+     */
+    public void addPublicAsset(String name){
+        synchronized(mPublicPaths){
+            mPublicPaths.add(ASSETS_PATH + trimSlashes(name));
+        }
+    }
+
+    /**
+     * Returns the url a file in a registered directory is served at.
+     * @param path The directory's path
+     * @param name The file name, relative to the directory
+     * @return
+     */
+    public static String getUrl(String path, String name){
+        return BASE_URL + trimSlashes(path) + "/" + name;
+    }
+
+    /**
+     * Answers a request, for WebViewClient.shouldInterceptRequest.
+     * @param url
+     * @param pageUrl Url of the page making the request, null for a top level navigation
+     * @return The response, or null to let the web view load the url itself
+     */
+    public WebResourceResponse serve(String url, String pageUrl){
+
+        if(url == null || !url.startsWith(BASE_URL))
+            return null;
+
+        Uri uri = Uri.parse(url);
+        String path = uri.getPath();
+        if(path == null)
+            return null;
+
+        boolean versioned = uri.getQueryParameter(VERSION_PARAMETER) != null;
+
+        path = trimSlashes(path);
+
+        // No escaping the served folders
+        if(path.contains(".."))
+            return null;
+
+        // Other sites only get the public files
+        if(pageUrl != null && !pageUrl.startsWith(BASE_URL) && !isPublic(path))
+            return createForbiddenResponse();
+
+        try{
+            if(path.startsWith(ASSETS_PATH))
+                return serveAsset(path.substring(ASSETS_PATH.length()), versioned);
+
+            int slash = path.indexOf('/');
+            if(slash > 0){
+                File directory;
+                synchronized(mDirectories){
+                    directory = mDirectories.get(path.substring(0, slash));
+                }
+                if(directory != null)
+                    return serveFile(new File(directory, path.substring(slash + 1)), versioned);
+            }
+        }
+        catch(IOException e){
+            Log.e(TAG, "Unable to serve " + url, e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Serves an asset, precompressed, mapped or streamed, in that order of preference.
+     */
+    private WebResourceResponse serveAsset(String name, boolean versioned) throws IOException {
+
+        String mimeType = getMimeType(name);
+
+        // Assets only change with the app
+        String etag = "\"a" + Long.toHexString(mAssetsLastModified) + "\"";
+
+        // Precompressed
+        InputStream compressed = openAsset(name + GZIP_SUFFIX);
+        if(compressed != null)
+            return createResponse(mimeType, new GZIPInputStream(compressed, 8 * 1024), -1, mAssetsLastModified, etag, versioned);
+
+        // Stored uncompressed in the APK
+        Mapping mapping = getAssetMapping(name);
+        if(mapping != null)
+            return createResponse(mimeType, new ByteBufferInputStream(mapping.buffer), mapping.length, mAssetsLastModified, etag, versioned);
+
+        // Compressed in the APK
+        InputStream stream = openAsset(name);
+        if(stream != null)
+            return createResponse(mimeType, stream, -1, mAssetsLastModified, etag, versioned);
+
+        return null;
+    }
+
+    /**
+     * Serves a file from a registered directory.
+     */
+    private WebResourceResponse serveFile(File file, boolean versioned) throws IOException {
+
+        if(!file.isFile())
+            return null;
+
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+
+        String etag = "\"f" + Long.toHexString(lastModified) + "-" + Long.toHexString(file.length()) + "\"";
+
+        Mapping mapping = getCachedMapping(key, lastModified, file.length());
+        if(mapping == null){
+            FileInputStream stream = new FileInputStream(file);
+            try{
+                FileChannel channel = stream.getChannel();
+                mapping = new Mapping(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), lastModified);
+            }
+            finally{
+                stream.close();
+            }
+            putMapping(key, mapping);
+        }
+
+        return createResponse(getMimeType(file.getName()), new ByteBufferInputStream(mapping.buffer), mapping.length, lastModified, etag, versioned);
+    }
+
+    /**
+     * Maps an asset stored uncompressed in the APK.
+     * @return The mapping, or null if the asset is missing or compressed
+     */
+    private Mapping getAssetMapping(String name) throws IOException {
+
+        String key = ASSETS_PATH + name;
+
+        // Assets only change with the app, and the process with them
+        Mapping mapping = getCachedMapping(key, mAssetsLastModified, -1);
+        if(mapping != null)
+            return mapping;
+
+        AssetFileDescriptor descriptor;
+        try{
+            descriptor = mAssets.openFd(name);
+        }
+        catch(FileNotFoundException e){
+            // Missing, or compressed so it can't be mapped
+            return null;
+        }
+
+        FileInputStream stream = null;
+        try{
+            stream = new FileInputStream(descriptor.getFileDescriptor());
+            MappedByteBuffer buffer = stream.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    descriptor.getStartOffset(), descriptor.getLength());
+            mapping = new Mapping(buffer, mAssetsLastModified);
+        }
+        finally{
+            if(stream != null)
+                stream.close();
+            descriptor.close();
+        }
+
+        putMapping(key, mapping);
+        return mapping;
+    }
+
+    /**
+     * Opens an asset for streaming.
+     * @return The stream, or null if there's no such asset
+     */
+    private InputStream openAsset(String name){
+        try{
+            return mAssets.open(name, AssetManager.ACCESS_STREAMING);
+        }
+        catch(IOException e){
+            return null;
+        }
+    }
+
+    private boolean isPublic(String path){
+        synchronized(mPublicPaths){
+            return mPublicPaths.contains(path);
+        }
+    }
+
+    /**
+     * Returns a cached mapping if the file it maps is unchanged.
+     * @param length The file's length, or -1 to only check the modification time
+     */
+    private Mapping getCachedMapping(String key, long lastModified, long length){
+        synchronized(mMappings){
+            Mapping mapping = mMappings.get(key);
+            if(mapping != null && mapping.lastModified == lastModified && (length < 0 || mapping.length == length)){
+                mMappingHitCount++;
+                return mapping;
+            }
+            return null;
+        }
+    }
+
+    private void putMapping(String key, Mapping mapping){
+
+        if(mapping.length > MAPPING_CACHE_BYTES)
+            return;
+
+        synchronized(mMappings){
+            Mapping old = mMappings.put(key, mapping);
+            if(old != null)
+                mMappingBytes -= old.length;
+            mMappingBytes += mapping.length;
+
+            // Least recently used go first, the page cache still has them
+            Iterator<Mapping> mappings = mMappings.values().iterator();
+            while((mMappings.size() > MAPPING_CACHE_SIZE || mMappingBytes > MAPPING_CACHE_BYTES) && mappings.hasNext()){
+                mMappingBytes -= mappings.next().length;
+                mappings.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops the cached mappings, e.g. on low memory.
+     */
+    public void clearCache(){
+        synchronized(mMappings){
+            mMappings.clear();
+            mMappingBytes = 0;
+        }
+    }
+
+    /**
+     * Builds a response, with cache headers where supported.
+     * @param length The body length, or -1 if unknown
+     */
+    private WebResourceResponse createResponse(String mimeType, InputStream data, long length, long lastModified,
+                                               String etag, boolean versioned) throws IOException {
+
+        synchronized(mMappings){
+            mServedCount++;
+        }
+
+        String encoding = null;
+        if(isText(mimeType)){
+            if(!data.markSupported())
+                data = new BufferedInputStream(data, 8 * 1024);
+            encoding = sniffEncoding(data);
+        }
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP){
+            Map<String, String> headers = createCacheHeaders(etag, versioned);
+            if(lastModified > 0)
+                headers.put("Last-Modified", formatHttpDate(lastModified));
+            if(length >= 0)
+                headers.put("Content-Length", String.valueOf(length));
+
+            return createResponseWithHeaders(mimeType, encoding, 200, "OK", headers, data);
+        }
+
+        return new WebResourceResponse(mimeType, encoding, data);
+    }
+
+    /**
+     * Builds an empty response for a request the page isn't allowed to make.
+     */
+    private WebResourceResponse createForbiddenResponse(){
+
+        synchronized(mMappings){
+            mRefusedCount++;
+        }
+
+        InputStream empty = new ByteBufferInputStream(ByteBuffer.allocate(0));
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            return createResponseWithHeaders("text/plain", null, 403, "Forbidden", new HashMap<String, String>(), empty);
+
+        return new WebResourceResponse("text/plain", null, empty);
+    }
+
+    private static Map<String, String> createCacheHeaders(String etag, boolean versioned){
+
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Cache-Control", versioned ? "max-age=" + VERSIONED_MAX_AGE_SECONDS + ", immutable" : "max-age=" + MAX_AGE_SECONDS);
+        headers.put("ETag", etag);
+        return headers;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static WebResourceResponse createResponseWithHeaders(String mimeType, String encoding, int status, String reason,
+                                                                 Map<String, String> headers, InputStream data){
+        return new WebResourceResponse(mimeType, encoding, status, reason, headers, data);
+    }
+
+    /**
+     * Returns the MIME type for a file name, from its extension.
+     * @param name
+     * @return
+     */
+    public static String getMimeType(String name){
+
+        int dot = name.lastIndexOf('.');
+        String extension = (dot >= 0) ? name.substring(dot + 1).toLowerCase(Locale.US) : "";
+
+        String mimeType = MIME_TYPES.get(extension);
+        if(mimeType == null)
+            mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+
+        return (mimeType != null) ? mimeType : "application/octet-stream";
+    }
+
+    private static boolean isText(String mimeType){
+        return mimeType.startsWith("text/") || mimeType.endsWith("javascript")
+                || mimeType.endsWith("json") || mimeType.endsWith("xml");
+    }
+
+    /**
+     * Reads the encoding from a byte order mark, leaving the stream where it was.
+     * @param data A stream that supports mark
+     * @return The encoding, or null if there's no byte order mark
+     */
+    private static String sniffEncoding(InputStream data) throws IOException {
+
+        data.mark(3);
+        int b0 = data.read();
+        int b1 = data.read();
+        int b2 = data.read();
+        data.reset();
+
+        if(b0 == 0xef && b1 == 0xbb && b2 == 0xbf)
+            return "UTF-8";
+        if(b0 == 0xfe && b1 == 0xff)
+            return "UTF-16BE";
+        if(b0 == 0xff && b1 == 0xfe)
+            return "UTF-16LE";
+
+        return null;
+    }
+
+    private static String formatHttpDate(long time){
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    private static String trimSlashes(String path){
+        int start = 0;
+        int end = path.length();
+        while(start < end && path.charAt(start) == '/')
+            start++;
+        while(end > start && path.charAt(end - 1) == '/')
+            end--;
+        return path.substring(start, end);
+    }
+
+
+    //*****************************************************
+    //*
+    //*		Metrics
+    //*
+    //*****************************************************
+
+    /**
+     * Returns the number of requests served.
+     * @return
+     */
+    public long getServedCount(){
+        synchronized(mMappings){
+            return mServedCount;
+        }
+    }
+
+    /**
+     * Returns the number of requests served from a cached mapping.
+     * @return
+     */
+    public long getMappingHitCount(){
+        synchronized(mMappings){
+            return mMappingHitCount;
+        }
+    }
+
+    /**
+     * Returns the number of requests refused because the page wasn't served by the app.
+     * @return
+     */
+    public long getRefusedCount(){
+        synchronized(mMappings){
+            return mRefusedCount;
+        }
+    }
+
+
+    /**
+     * A memory mapped file or asset.
+     */
+    private static class Mapping {
+
+        final ByteBuffer buffer;
+        final long length;
+        final long lastModified;
+
+        Mapping(ByteBuffer buffer, long lastModified){
+            this.buffer = buffer;
+            this.length = buffer.capacity();
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Reads a mapped buffer without copying it. Each stream gets its own position.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer mBuffer;
+
+        private int mMark = 0;
+
+        ByteBufferInputStream(ByteBuffer buffer){
+            mBuffer = buffer.duplicate();
+            mBuffer.clear();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readLimit) {
+            mMark = mBuffer.position();
+        }
+
+        @Override
+        public void reset() {
+            mBuffer.position(mMark);
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) {
+
+            if(count == 0)
+                return 0;
+
+            if(!mBuffer.hasRemaining())
+                return -1;
+
+            count = Math.min(count, mBuffer.remaining());
+            mBuffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int) Math.min(Math.max(count, 0), mBuffer.remaining());
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package net.londatiga.android;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of action item icons and thumbnails, keyed by resource id or uri.
+ *
+ * Resources can decode differently after a configuration change, so resource entries are also
+ * keyed by screen density, and dropped when the configuration changes.
+ *
+ * Icons are kept as drawable constant state, so every drawable handed out shares one decoded
+ * bitmap. Call mutate() on an icon before changing it. Thumbnails are kept as bitmaps, which
+ * must not be recycled by callers. Images from uris are subsampled while decoding, to no less
+ * than {@link #THUMB_SIZE_DP} on their shorter side.
+ *
+ * The cache is bounded by the bytes of pixels it holds, evicting the least recently used
+ * entries first. It trims itself when the system is low on memory, and can be trimmed or
+ * cleared with {@link #trimMemory} and {@link #clear}.
+ *
+ * Any thread.
+ */
+public class ActionIconCache {
+	private static final String TAG = "ActionIconCache";
+
+	/** Share of the heap the cache may use. */
+	private static final int HEAP_FRACTION = 64;
+
+	/** Size images from uris are decoded for. */
+	public static final int THUMB_SIZE_DP = 48;
+
+	private static ActionIconCache sInstance;
+
+	/** Entries, least recently used first. */
+	private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+	private final Context mApplicationContext;
+
+	private int mMaxBytes;
+	private int mSizeBytes = 0;
+
+	/** Lookups that were cached, and ones that had to decode. */
+	private long mHitCount = 0;
+	private long mMissCount = 0;
+
+	/**
+	 * Returns the cache, creating it the first time.
+	 *
+	 * @param context Any context of the app
+	 */
+	public static synchronized ActionIconCache getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new ActionIconCache(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private ActionIconCache(Context applicationContext) {
+		mApplicationContext = applicationContext;
+		mMaxBytes = (int) (Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+			registerMemoryCallbacks();
+		}
+	}
+
+	/**
+	 * Returns an icon from a drawable resource.
+	 *
+	 * @param context Context whose resources the drawable is for
+	 * @param resId Drawable resource id
+	 * @return A new drawable sharing the cached state
+	 */
+	public Drawable getIcon(Context context, int resId) {
+		Resources resources = context.getResources();
+		Key key = new Key(Key.ICON, resId, null, resources.getDisplayMetrics().densityDpi);
+
+		synchronized (this) {
+			Entry entry = get(key);
+			if (entry != null) {
+				return entry.state.newDrawable(resources);
+			}
+		}
+
+		Drawable icon = resources.getDrawable(resId);
+		putIcon(key, icon);
+		return icon;
+	}
+
+	/**
+	 * Returns an icon from an image uri.
+	 *
+	 * @param context Context whose resources the drawable is for
+	 * @param uri Image uri, anything the content resolver opens
+	 * @return A new drawable sharing the cached state, or null if the image can't be read
+	 */
+	public Drawable getIcon(Context context, Uri uri) {
+		Resources resources = context.getResources();
+		Key key = new Key(Key.ICON, 0, uri, resources.getDisplayMetrics().densityDpi);
+
+		synchronized (this) {
+			Entry entry = get(key);
+			if (entry != null) {
+				return entry.state.newDrawable(resources);
+			}
+		}
+
+		Bitmap bitmap = decode(context, uri);
+		if (bitmap == null) {
+			return null;
+		}
+
+		Drawable icon = new BitmapDrawable(resources, bitmap);
+		putIcon(key, icon);
+		return icon;
+	}
+
+	/**
+	 * Returns a thumbnail from a drawable resource.
+	 *
+	 * @param context Any context of the app
+	 * @param resId Drawable resource id of a bitmap
+	 * @return The shared bitmap, or null if it can't be decoded
+	 */
+	public Bitmap getThumb(Context context, int resId) {
+		Key key = new Key(Key.THUMB, resId, null, context.getResources().getDisplayMetrics().densityDpi);
+
+		synchronized (this) {
+			Entry entry = get(key);
+			if (entry != null) {
+				return entry.bitmap;
+			}
+		}
+
+		Bitmap thumb = BitmapFactory.decodeResource(context.getResources(), resId);
+		if (thumb != null) {
+			putThumb(key, thumb);
+		}
+		return thumb;
+	}
+
+	/**
+	 * Returns a thumbnail from an image uri.
+	 *
+	 * @param context Any context of the app
+	 * @param uri Image uri, anything the content resolver opens
+	 * @return The shared bitmap, or null if the image can't be read
+	 */
+	public Bitmap getThumb(Context context, Uri uri) {
+		Key key = new Key(Key.THUMB, 0, uri, context.getResources().getDisplayMetrics().densityDpi);
+
+		synchronized (this) {
+			Entry entry = get(key);
+			if (entry != null) {
+				return entry.bitmap;
+			}
+		}
+
+		Bitmap thumb = decode(context, uri);
+		if (thumb != null) {
+			putThumb(key, thumb);
+		}
+		return thumb;
+	}
+
+	/**
+	 * Drops entries for the given ComponentCallbacks2 trim level.
+	 */
+	public synchronized void trimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			trimToBytes(0);
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+			trimToBytes(mMaxBytes / 2);
+		}
+	}
+
+	/**
+	 * Drops all entries.
+	 */
+	public synchronized void clear() {
+		trimToBytes(0);
+	}
+
+	/**
+	 * Drops the entries decoded from resources, which may differ in the new configuration.
+	 * Entries from uris are kept.
+	 */
+	public synchronized void clearResources() {
+		Iterator<Map.Entry<Key, Entry>> entries = mEntries.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Key, Entry> entry = entries.next();
+			if (entry.getKey().uri == null) {
+				mSizeBytes -= entry.getValue().bytes;
+				entries.remove();
+			}
+		}
+	}
+
+	/**
+	 * Sets the byte budget, evicting entries over it.
+	 */
+	public synchronized void setMaxBytes(int maxBytes) {
+		mMaxBytes = maxBytes;
+		trimToBytes(maxBytes);
+	}
+
+	public synchronized int getMaxBytes() {
+		return mMaxBytes;
+	}
+
+	/**
+	 * Returns the bytes of pixels held.
+	 */
+	public synchronized int getSizeBytes() {
+		return mSizeBytes;
+	}
+
+	public synchronized int getSize() {
+		return mEntries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return mMissCount;
+	}
+
+	private Entry get(Key key) {
+		Entry entry = mEntries.get(key);
+		if (entry == null) {
+			mMissCount++;
+		} else {
+			mHitCount++;
+		}
+		return entry;
+	}
+
+	private void putIcon(Key key, Drawable icon) {
+		Drawable.ConstantState state = icon.getConstantState();
+		if (state == null) {
+			// Can't be shared
+			return;
+		}
+
+		Entry entry = new Entry();
+		entry.state = state;
+		if (icon instanceof BitmapDrawable && ((BitmapDrawable) icon).getBitmap() != null) {
+			entry.bytes = getBytes(((BitmapDrawable) icon).getBitmap());
+		} else {
+			entry.bytes = Math.max(0, icon.getIntrinsicWidth()) * Math.max(0, icon.getIntrinsicHeight()) * 4;
+		}
+		put(key, entry);
+	}
+
+	private void putThumb(Key key, Bitmap thumb) {
+		Entry entry = new Entry();
+		entry.bitmap = thumb;
+		entry.bytes = getBytes(thumb);
+		put(key, entry);
+	}
+
+	private synchronized void put(Key key, Entry entry) {
+		if (entry.bytes > mMaxBytes) {
+			return;
+		}
+
+		Entry old = mEntries.put(key, entry);
+		if (old != null) {
+			mSizeBytes -= old.bytes;
+		}
+		mSizeBytes += entry.bytes;
+
+		trimToBytes(mMaxBytes);
+	}
+
+	private void trimToBytes(int maxBytes) {
+		Iterator<Entry> entries = mEntries.values().iterator();
+		while (mSizeBytes > maxBytes && entries.hasNext()) {
+			mSizeBytes -= entries.next().bytes;
+			entries.remove();
+		}
+
+		if (maxBytes <= 0) {
+			mEntries.clear();
+			mSizeBytes = 0;
+		}
+	}
+
+	/**
+	 * Decodes an image from a uri, subsampled down to thumbnail size. The bounds are read
+	 * first, so the full size image is never decoded.
+	 * @return The bitmap, or null on failure
+	 */
+	private static Bitmap decode(Context context, Uri uri) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		decode(context, uri, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			return null;
+		}
+
+		int size = (int) (THUMB_SIZE_DP * context.getResources().getDisplayMetrics().density + 0.5f);
+		int sampleSize = 1;
+		while (Math.min(options.outWidth, options.outHeight) / (sampleSize * 2) >= size) {
+			sampleSize *= 2;
+		}
+
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		return decode(context, uri, options);
+	}
+
+	/**
+	 * Decodes a uri with the given options.
+	 * @return The bitmap, or null on failure or when only decoding bounds
+	 */
+	private static Bitmap decode(Context context, Uri uri, BitmapFactory.Options options) {
+		InputStream stream = null;
+
+		try {
+			stream = context.getContentResolver().openInputStream(uri);
+			return BitmapFactory.decodeStream(stream, null, options);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to read " + uri, e);
+			return null;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bitmap.getByteCount needs Honeycomb MR1.
+	 */
+	private static int getBytes(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	private void registerMemoryCallbacks() {
+		mApplicationContext.registerComponentCallbacks(new ComponentCallbacks2() {
+			@Override
+			public void onTrimMemory(int level) {
+				trimMemory(level);
+			}
+
+			@Override
+			public void onLowMemory() {
+				clear();
+			}
+
+			@Override
+			public void onConfigurationChanged(Configuration newConfig) {
+				clearResources();
+			}
+		});
+	}
+
+	/**
+	 * Cache key, the kind of entry and a resource id or uri. Resource keys carry the density
+	 * they were decoded for.
+	 */
+	private static final class Key {
+		static final int ICON = 0;
+		static final int THUMB = 1;
+
+		final int kind;
+		final int resId;
+		final Uri uri;
+		final int density;
+
+		Key(int kind, int resId, Uri uri, int density) {
+			this.kind = kind;
+			this.resId = resId;
+			this.uri = uri;
+			this.density = density;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return kind == other.kind && resId == other.resId && density == other.density
+					&& (uri == null ? other.uri == null : uri.equals(other.uri));
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = (kind * 31 + resId) * 31 + density;
+			return hash * 31 + ((uri != null) ? uri.hashCode() : 0);
+		}
+	}
+
+	private static class Entry {
+		Drawable.ConstantState state;
+		Bitmap bitmap;
+		int bytes;
+	}
+}
@@ -1,7 +1,9 @@
 package net.londatiga.android;
 
+import android.content.Context;
 import android.graphics.drawable.Drawable;
 import android.graphics.Bitmap;
+import android.net.Uri;
 
 /**
  * Action item, displayed as menu with icon and text.
@@ -96,6 +98,16 @@ public class ActionItem {
 		this.icon = icon;
 	}
 	
+	/**
+	 * Set action icon from a drawable resource, shared through {@link ActionIconCache}
+	 * 
+	 * @param context Context whose resources the icon is for
+	 * @param resId Drawable resource id
+	 */
+	public void setIcon(Context context, int resId) {
+		this.icon = ActionIconCache.getInstance(context).getIcon(context, resId);
+	}
+	
 	/**
 	 * Get action icon
 	 * @return  {@link Drawable} action icon
@@ -163,6 +175,16 @@ public class ActionItem {
 		this.thumb = thumb;
 	}
 	
+	/**
+	 * Set thumb from an image uri, shared through {@link ActionIconCache}
+	 * 
+	 * @param context Any context of the app
+	 * @param uri Image uri
+	 */
+	public void setThumb(Context context, Uri uri) {
+		this.thumb = ActionIconCache.getInstance(context).getThumb(context, uri);
+	}
+	
 	/**
 	 * Get thumb image
 	 * 
@@ -0,0 +1,137 @@
+package net.londatiga.android;
+
+import android.content.Context;
+import android.view.View;
+import android.view.ViewGroup;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+
+/**
+ * Recycled action item and separator views, shared by the quick actions of a context.
+ *
+ * Views are tied to the context they were inflated with, so there's one pool per inflater
+ * context. Key pools on the inflater's own context rather than whatever wrapper the caller has,
+ * so quick actions built on different wrappers of one screen share a pool. Quick actions hold
+ * their pool, and the pool is only weakly referenced from here, so the pool and its views go
+ * away with the last quick action of the context.
+ *
+ * Must be used on the UI thread.
+ */
+public class ActionItemViewPool {
+
+	/** Max views kept of each kind. */
+	private static final int MAX_VIEWS = 12;
+
+	/** Pools by context. */
+	private static final WeakHashMap<Context, WeakReference<ActionItemViewPool>> sPools =
+			new WeakHashMap<Context, WeakReference<ActionItemViewPool>>();
+
+	private final ArrayList<View> mHorizontalItems = new ArrayList<View>();
+	private final ArrayList<View> mVerticalItems = new ArrayList<View>();
+	private final ArrayList<View> mSeparators = new ArrayList<View>();
+
+	/** Views handed out from the pool, and ones that had to be inflated. */
+	private long mHitCount = 0;
+	private long mMissCount = 0;
+
+	/**
+	 * Returns the pool of a context, creating it if needed.
+	 *
+	 * @param context Context of the inflater the views are inflated with
+	 */
+	public static ActionItemViewPool get(Context context) {
+		WeakReference<ActionItemViewPool> reference = sPools.get(context);
+		ActionItemViewPool pool = (reference != null) ? reference.get() : null;
+
+		if (pool == null) {
+			pool = new ActionItemViewPool();
+			sPools.put(context, new WeakReference<ActionItemViewPool>(pool));
+		}
+
+		return pool;
+	}
+
+	/**
+	 * Takes an item view for the given orientation.
+	 *
+	 * @param orientation {@link QuickAction#HORIZONTAL} or {@link QuickAction#VERTICAL}
+	 * @return A recycled view, or null if one has to be inflated
+	 */
+	public View obtainItem(int orientation) {
+		return obtain((orientation == QuickAction.HORIZONTAL) ? mHorizontalItems : mVerticalItems);
+	}
+
+	/**
+	 * Takes a separator view.
+	 *
+	 * @return A recycled view, or null if one has to be inflated
+	 */
+	public View obtainSeparator() {
+		return obtain(mSeparators);
+	}
+
+	/**
+	 * Gives back an item view. It's removed from its parent, and cleared of the selection
+	 * drawable in case it's recycled mid press.
+	 */
+	public void recycleItem(int orientation, View item) {
+		item.setBackgroundResource(android.R.color.transparent);
+		recycle((orientation == QuickAction.HORIZONTAL) ? mHorizontalItems : mVerticalItems, item);
+	}
+
+	/**
+	 * Gives back a separator view. It's removed from its parent.
+	 */
+	public void recycleSeparator(View separator) {
+		recycle(mSeparators, separator);
+	}
+
+	/**
+	 * Drops all pooled views.
+	 */
+	public void clear() {
+		mHorizontalItems.clear();
+		mVerticalItems.clear();
+		mSeparators.clear();
+	}
+
+	/**
+	 * Returns the number of pooled views.
+	 */
+	public int getSize() {
+		return mHorizontalItems.size() + mVerticalItems.size() + mSeparators.size();
+	}
+
+	public long getHitCount() {
+		return mHitCount;
+	}
+
+	public long getMissCount() {
+		return mMissCount;
+	}
+
+	private View obtain(ArrayList<View> views) {
+		int size = views.size();
+		if (size == 0) {
+			mMissCount++;
+			return null;
+		}
+
+		mHitCount++;
+		return views.remove(size - 1);
+	}
+
+	private void recycle(ArrayList<View> views, View view) {
+		ViewGroup parent = (ViewGroup) view.getParent();
+		if (parent != null) {
+			parent.removeView(view);
+		}
+
+		if (views.size() < MAX_VIEWS) {
+			view.setPressed(false);
+			views.add(view);
+		}
+	}
+}
@@ -25,6 +25,9 @@ public class PopupWindows {
 	protected Drawable mBackground = null;
 	protected WindowManager mWindowManager;
 	
+	/** Whether the window has been set up by preShow since the content or background changed. */
+	private boolean mPrepared = false;
+	
 	/**
 	 * Constructor.
 	 * 
@@ -70,6 +73,9 @@ public class PopupWindows {
 			throw new IllegalStateException("setContentView was not called with a view to display.");
 	
 		onShow();
+		
+		if (mPrepared)
+			return;
 
 		if (mBackground == null) 
 			mWindow.setBackgroundDrawable(new BitmapDrawable());
@@ -85,6 +91,8 @@ public class PopupWindows {
 		mWindow.setOutsideTouchable(true);
 
 		mWindow.setContentView(mRootView);
+		
+		mPrepared = true;
 	}
 
 	/**
@@ -94,6 +102,7 @@ public class PopupWindows {
 	 */
 	public void setBackgroundDrawable(Drawable background) {
 		mBackground = background;
+		mPrepared = false;
 	}
 
 	/**
@@ -103,6 +112,7 @@ public class PopupWindows {
 	 */
 	public void setContentView(View root) {
 		mRootView = root;
+		mPrepared = false;
 		
 		mWindow.setContentView(root);
 	}
@@ -13,6 +13,7 @@ import android.widget.RelativeLayout;
 import android.widget.PopupWindow.OnDismissListener;
 
 import android.util.Log;
+import android.view.Display;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
@@ -48,13 +49,43 @@ public class QuickAction extends PopupWindows implements OnDismissListener {
 	
 	private List<ActionItem> actionItems = new ArrayList<ActionItem>();
 	
+	/** Item views by position, and the separator in front of each, null if none. */
+	private ArrayList<View> mItemViews = new ArrayList<View>();
+	private ArrayList<View> mSeparatorViews = new ArrayList<View>();
+	
+	/** Recycled item views, shared by the quick actions of the context. */
+	private ActionItemViewPool mViewPool;
+	
 	private boolean mDidAction;
 	
 	private int mChildPos;
     private int mInsertPos;
     private int mAnimStyle;
     private int mOrientation;
-    private int rootWidth=0;
+    
+    /** Bumped when the action items change, so the menu is measured again. */
+    private int mActionSet = 0;
+    
+    /** Cached menu and screen sizes, and the action set and orientation they're for. */
+    private int mRootWidth;
+    private int mRootHeight;
+    private int mScrollerHeight;
+    private int mMeasuredActionSet = -1;
+    private int mMeasuredOrientation = -1;
+    private int mScreenWidth = 0;
+    private int mScreenHeight = 0;
+    
+    /** Results of the last placement. */
+    private int mPlacedX;
+    private int mPlacedY;
+    private int mPlacedWidth;
+    private int mPlacedHeight;
+    private int mPlacedArrowX;
+    private boolean mPlacedOnTop;
+    
+    // temporaries to avoid gc thrash
+    private final int[] mLocationTemp = new int[2];
+    private final Rect mAnchorRectTemp = new Rect();
     
     public static final int HORIZONTAL = 0;
     public static final int VERTICAL = 1;
@@ -86,6 +117,8 @@ public class QuickAction extends PopupWindows implements OnDismissListener {
         mOrientation = orientation;
         
         mInflater 	 = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        // Wrappers of the same screen share its inflater, and so its views
+        mViewPool 	 = ActionItemViewPool.get(mInflater.getContext());
 
         if (mOrientation == HORIZONTAL) {
             setRootViewId(R.layout.popup_horizontal);
@@ -115,6 +148,7 @@ public class QuickAction extends PopupWindows implements OnDismissListener {
 	 */
 	public void setRootViewId(int id) {
 		mRootView	= (ViewGroup) mInflater.inflate(id, null);
+		mActionSet++;
 		mTrack 		= (ViewGroup) mRootView.findViewById(R.id.tracks);
 
 		mArrowDown 	= (ImageView) mRootView.findViewById(R.id.arrow_down);
@@ -155,87 +189,102 @@ public class QuickAction extends PopupWindows implements OnDismissListener {
 	 */
 	public void addActionItem(ActionItem action) {
 		actionItems.add(action);
+		mActionSet++;
 		
-		String title 	= action.getTitle();
-		Drawable icon 	= action.getIcon();
-		
-		View container;
-		
-		if (mOrientation == HORIZONTAL) {
-            container = mInflater.inflate(R.layout.action_item_horizontal, null);
-        } else {
-            container = mInflater.inflate(R.layout.action_item_vertical, null);
-        }
-		
-		ImageView img 	= (ImageView) container.findViewById(R.id.iv_icon);
-		TextView text 	= (TextView) container.findViewById(R.id.tv_title);
-		
-		if (icon != null) {
-			img.setImageDrawable(icon);
-		} else {
-			img.setVisibility(View.GONE);
-		}
-		
-		if (title != null) {
-			text.setText(title);
-		} else {
-			text.setVisibility(View.GONE);
+		appendItemView(action);
+	}
+	
+	/**
+	 * Replaces the action items. The new list is diffed against the current one, so only
+	 * changed titles and icons are rebound, and item and separator views are only added or
+	 * removed at the end. Removed views go back to the pool of the context.
+	 * 
+	 * @param items  The new items, in order
+	 */
+	public void setActionItems(List<ActionItem> items) {
+		int oldCount 	= actionItems.size();
+		int newCount 	= items.size();
+		int common 		= Math.min(oldCount, newCount);
+		boolean changed = oldCount != newCount;
+		
+		for (int i = 0; i < common; i++) {
+			ActionItem action = items.get(i);
+			actionItems.set(i, action);
+			
+			if (bindItemView(mItemViews.get(i), action, i)) {
+				changed = true;
+			}
 		}
 		
-		final int pos 		=  mChildPos;
-		final int actionId 	= action.getActionId();
-		
-		container.setOnClickListener(new OnClickListener() {
-			@Override
-			public void onClick(View v) {
-				if (mItemClickListener != null) {
-                    mItemClickListener.onItemClick(QuickAction.this, pos, actionId);
-                }
-				
-                if (!getActionItem(pos).isSticky()) {  
-                	mDidAction = true;
-                	
-                    dismiss();
-                }
+		// Drop items off the end, with the separators in front of them
+		for (int i = oldCount - 1; i >= newCount; i--) {
+			actionItems.remove(i);
+			
+			mViewPool.recycleItem(mOrientation, mItemViews.remove(i));
+			mChildPos--;
+			mInsertPos--;
+			
+			View separator = mSeparatorViews.remove(i);
+			if (separator != null) {
+				mViewPool.recycleSeparator(separator);
+				mInsertPos--;
 			}
-		});
+		}
 		
-		// Since I removed focusable from the popup window,
-		// I need to control the selection drawable here
-		container.setOnTouchListener(new OnTouchListener(){
-
-			@Override
-			public boolean onTouch(View v, MotionEvent event) {
-				
-				if(event.getAction() == MotionEvent.ACTION_DOWN){
-					
-					v.setBackgroundResource(R.drawable.action_item_selected);
-				}
-				else if(event.getAction() == MotionEvent.ACTION_UP
-						|| event.getAction() == MotionEvent.ACTION_CANCEL
-						|| event.getAction() == MotionEvent.ACTION_OUTSIDE){
-					v.setBackgroundResource(android.R.color.transparent);
-				}
-				
-				
-				
-				// TODO Auto-generated method stub
-				return false;
-			}
+		for (int i = oldCount; i < newCount; i++) {
+			ActionItem action = items.get(i);
+			actionItems.add(action);
 			
-		});
+			appendItemView(action);
+		}
 		
-		container.setFocusable(true);
-		container.setClickable(true);
+		if (changed) {
+			mActionSet++;
+		}
+	}
 	
+	/**
+	 * Adds the view of an item at the end of the track, recycled from the pool if there's one.
+	 */
+	private void appendItemView(ActionItem action) {
+		View container = mViewPool.obtainItem(mOrientation);
+		
+		if (container == null) {
+			if (mOrientation == HORIZONTAL) {
+	            container = mInflater.inflate(R.layout.action_item_horizontal, null);
+	        } else {
+	            container = mInflater.inflate(R.layout.action_item_vertical, null);
+	        }
+			
+			ItemViewHolder holder 	= new ItemViewHolder();
+			holder.icon 			= (ImageView) container.findViewById(R.id.iv_icon);
+			holder.title 			= (TextView) container.findViewById(R.id.tv_title);
+			container.setTag(holder);
+			
+			// Since I removed focusable from the popup window,
+			// I need to control the selection drawable here
+			container.setOnTouchListener(ITEM_TOUCH_LISTENER);
+			
+			container.setFocusable(true);
+			container.setClickable(true);
+		}
+		
+		bindItemView(container, action, mChildPos);
+		container.setOnClickListener(mItemClickHandler);
+		
+		View separator = null;
 			 
 		if (mOrientation == HORIZONTAL && mChildPos != 0) {
-            View separator = mInflater.inflate(R.layout.horiz_separator, null);
-            
-            RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.FILL_PARENT);
-            
-            separator.setLayoutParams(params);
-            separator.setPadding(5, 0, 5, 0);
+			separator = mViewPool.obtainSeparator();
+			
+			if (separator == null) {
+	            separator = mInflater.inflate(R.layout.horiz_separator, null);
+	            
+	            RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.FILL_PARENT);
+	            
+	            separator.setLayoutParams(params);
+	            separator.setPadding(5, 0, 5, 0);
+			}
             
             mTrack.addView(separator, mInsertPos);
             
@@ -243,100 +292,158 @@ public class QuickAction extends PopupWindows implements OnDismissListener {
         }
 		
 		mTrack.addView(container, mInsertPos);
+		mItemViews.add(container);
+		mSeparatorViews.add(separator);
 		
 		mChildPos++;
 		mInsertPos++;
 	}
 	
 	/**
-	 * Shows the quick action menu using the given Rect as the anchor.
-	 * @param parent
-	 * @param rect
+	 * Shows an item in a view, touching only what differs from what the view shows.
+	 * 
+	 * @return True if the title or icon changed
 	 */
-	public void show(View parent, Rect rect){
-		
-		preShow();
-		
-		int xPos, yPos, arrowPos;
+	private boolean bindItemView(View container, ActionItem action, int position) {
+		ItemViewHolder holder 	= (ItemViewHolder) container.getTag();
+		holder.position 		= position;
 		
-		mDidAction 			= false;
-		
-		int[] location 		= new int[2];
-		parent.getLocationOnScreen(location);
-		
-		int parentXPos = location[0];
-		int parentYPos = location[1];
-
-		Rect anchorRect 	= new Rect(parentXPos + rect.left, parentYPos + rect.top, parentXPos + rect.left + rect.width(), parentYPos + rect.top 
-            	+ rect.height());
-		int width = anchorRect.width();
-		int height = anchorRect.height();
-		
-		//mRootView.setLayoutParams(new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
-		
-		mRootView.measure(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
-	
-		int rootHeight 		= mRootView.getMeasuredHeight();
+		String title 	= action.getTitle();
+		Drawable icon 	= action.getIcon();
+		boolean changed = false;
 		
-		if (rootWidth == 0) {
-			rootWidth		= mRootView.getMeasuredWidth();
+		if (!holder.bound || icon != holder.boundIcon) {
+			if (icon != null) {
+				holder.icon.setImageDrawable(icon);
+				holder.icon.setVisibility(View.VISIBLE);
+			} else {
+				holder.icon.setImageDrawable(null);
+				holder.icon.setVisibility(View.GONE);
+			}
+			holder.boundIcon = icon;
+			changed = true;
 		}
 		
-		int screenWidth 	= mWindowManager.getDefaultDisplay().getWidth();
-		int screenHeight	= mWindowManager.getDefaultDisplay().getHeight();
+		if (!holder.bound || (title == null ? holder.boundTitle != null : !title.equals(holder.boundTitle))) {
+			if (title != null) {
+				holder.title.setText(title);
+				holder.title.setVisibility(View.VISIBLE);
+			} else {
+				holder.title.setVisibility(View.GONE);
+			}
+			holder.boundTitle = title;
+			changed = true;
+		}
 		
-		//automatically get X coord of popup (top left)
-		if ((anchorRect.left + parentXPos + rootWidth) > screenWidth) {
-			xPos 		= anchorRect.left - (rootWidth-width);			
-			xPos 		= (xPos < 0) ? 0 : xPos;
+		holder.bound = true;
+		return changed;
+	}
+	
+	/**
+	 * Reports clicks on items, found by the position in their holder.
+	 */
+	private final OnClickListener mItemClickHandler = new OnClickListener() {
+		@Override
+		public void onClick(View v) {
+			int pos = ((ItemViewHolder) v.getTag()).position;
 			
+			if (mItemClickListener != null) {
+                mItemClickListener.onItemClick(QuickAction.this, pos, getActionItem(pos).getActionId());
+            }
 			
-			arrowPos 	= anchorRect.centerX()-xPos;
+            if (!getActionItem(pos).isSticky()) {  
+            	mDidAction = true;
+            	
+                dismiss();
+            }
+		}
+	};
+	
+	/**
+	 * Shows the selection drawable of an item, shared by all items.
+	 */
+	private static final OnTouchListener ITEM_TOUCH_LISTENER = new OnTouchListener(){
+
+		@Override
+		public boolean onTouch(View v, MotionEvent event) {
 			
-		} else {
-			if (width > rootWidth) {
-				xPos = anchorRect.centerX() - (rootWidth/2);
-			} else {
-				xPos = anchorRect.left;
+			if(event.getAction() == MotionEvent.ACTION_DOWN){
+				
+				v.setBackgroundResource(R.drawable.action_item_selected);
+			}
+			else if(event.getAction() == MotionEvent.ACTION_UP
+					|| event.getAction() == MotionEvent.ACTION_CANCEL
+					|| event.getAction() == MotionEvent.ACTION_OUTSIDE){
+				v.setBackgroundResource(android.R.color.transparent);
 			}
 			
-			
-			arrowPos = anchorRect.centerX()-xPos;
+			return false;
 		}
 		
+	};
+	
+	/**
+	 * Views of an item and what they show. Travels with the view through the pool.
+	 */
+	private static class ItemViewHolder {
+		ImageView icon;
+		TextView title;
+		int position;
+		boolean bound;
+		String boundTitle;
+		Drawable boundIcon;
+	}
+	
+	/**
+	 * Returns true if the menu is on screen.
+	 */
+	public boolean isShowing() {
+		return mWindow.isShowing();
+	}
+	
+	/**
+	 * Shows the quick action menu using the given Rect as the anchor. If the menu is
+	 * already showing it's moved to the new anchor in place.
+	 * 
+	 * Doesn't allocate once the menu has been shown, so it can follow a drag.
+	 * @param parent
+	 * @param rect
+	 */
+	public void show(View parent, Rect rect){
 		
-		int dyTop			= anchorRect.top;
-		int dyBottom		= screenHeight - anchorRect.bottom;
-
-		boolean onTop		= (dyTop > dyBottom) ? true : false;
-
-		if (onTop) {
-			if (rootHeight > dyTop) {
-				yPos 			= 15;
-				LayoutParams l 	= mScroller.getLayoutParams();
-				l.height		= dyTop - height;
-			} else {
-				yPos = anchorRect.top - rootHeight;
-			}
-		} else {
-			yPos = anchorRect.bottom;
+		boolean showing = mWindow.isShowing();
+		
+		if (!showing) {
+			preShow();
 			
-			if (rootHeight > dyBottom) { 
-				LayoutParams l 	= mScroller.getLayoutParams();
-				l.height		= dyBottom;
-			}
+			mDidAction 		= false;
 		}
 		
+		int[] location 		= mLocationTemp;
+		parent.getLocationOnScreen(location);
 		
-		//showArrow(((onTop) ? R.id.arrow_down : R.id.arrow_up), arrowPos);
+		int parentXPos = location[0];
+		int parentYPos = location[1];
+
+		Rect anchorRect 	= mAnchorRectTemp;
+		anchorRect.set(parentXPos + rect.left, parentYPos + rect.top, parentXPos + rect.left + rect.width(), parentYPos + rect.top 
+            	+ rect.height());
+		
+		place(anchorRect, parentXPos);
 		
 		// No arrows
 		mArrowUp.setVisibility(View.INVISIBLE);
 		mArrowDown.setVisibility(View.INVISIBLE);
 		
-		setAnimationStyle(screenWidth, anchorRect.centerX(), onTop);
+		if (showing) {
+			// Move and resize the window rather than dismissing and adding it again
+			mWindow.update(mPlacedX, mPlacedY, mPlacedWidth, mPlacedHeight);
+			return;
+		}
 		
-		mWindow.showAtLocation(parent, Gravity.NO_GRAVITY, xPos, yPos);
+		setAnimationStyle(mScreenWidth, anchorRect.centerX(), mPlacedOnTop);
+		
+		mWindow.showAtLocation(parent, Gravity.NO_GRAVITY, mPlacedX, mPlacedY);
 		
 	}
 	
@@ -347,57 +454,78 @@ public class QuickAction extends PopupWindows implements OnDismissListener {
 	public void show (View anchor) {
 		preShow();
 		
-		int xPos, yPos, arrowPos;
-		
 		mDidAction 			= false;
 		
-		int[] location 		= new int[2];
+		int[] location 		= mLocationTemp;
 	
 		anchor.getLocationOnScreen(location);
 
-		Rect anchorRect 	= new Rect(location[0], location[1], location[0] + anchor.getWidth(), location[1] 
+		Rect anchorRect 	= mAnchorRectTemp;
+		anchorRect.set(location[0], location[1], location[0] + anchor.getWidth(), location[1] 
 		                	+ anchor.getHeight());
 
-		//mRootView.setLayoutParams(new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
+		place(anchorRect, 0);
+		
+		showArrow(((mPlacedOnTop) ? R.id.arrow_down : R.id.arrow_up), mPlacedArrowX);
 		
-		mRootView.measure(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
+		setAnimationStyle(mScreenWidth, anchorRect.centerX(), mPlacedOnTop);
+		
+		mWindow.showAtLocation(anchor, Gravity.NO_GRAVITY, mPlacedX, mPlacedY);
+	}
 	
-		int rootHeight 		= mRootView.getMeasuredHeight();
+	/**
+	 * Tells the menu the configuration changed, so the screen and menu sizes are read again.
+	 */
+	public void onConfigurationChanged() {
+		mScreenWidth 		= 0;
+		mMeasuredActionSet 	= -1;
+	}
+	
+	/**
+	 * Works out where the menu goes for an anchor in screen coordinates. The results are left
+	 * in the mPlaced fields.
+	 * 
+	 * @param anchorRect The anchor in screen coordinates
+	 * @param overflowOffset Added to the anchor's left edge when checking whether the menu
+	 * 		  fits to the right of it
+	 */
+	private void place(Rect anchorRect, int overflowOffset) {
+		int width 			= anchorRect.width();
+		int height 			= anchorRect.height();
 		
-		if (rootWidth == 0) {
-			rootWidth		= mRootView.getMeasuredWidth();
-		}
+		ensureMeasured();
 		
-		int screenWidth 	= mWindowManager.getDefaultDisplay().getWidth();
-		int screenHeight	= mWindowManager.getDefaultDisplay().getHeight();
+		int rootWidth 		= mRootWidth;
+		int rootHeight 		= mRootHeight;
+		int screenWidth 	= mScreenWidth;
+		int screenHeight	= mScreenHeight;
+		
+		int xPos, yPos;
 		
 		//automatically get X coord of popup (top left)
-		if ((anchorRect.left + rootWidth) > screenWidth) {
-			xPos 		= anchorRect.left - (rootWidth-anchor.getWidth());			
+		if ((anchorRect.left + overflowOffset + rootWidth) > screenWidth) {
+			xPos 		= anchorRect.left - (rootWidth-width);			
 			xPos 		= (xPos < 0) ? 0 : xPos;
-			
-			arrowPos 	= anchorRect.centerX()-xPos;
-			
 		} else {
-			if (anchor.getWidth() > rootWidth) {
+			if (width > rootWidth) {
 				xPos = anchorRect.centerX() - (rootWidth/2);
 			} else {
 				xPos = anchorRect.left;
 			}
-			
-			arrowPos = anchorRect.centerX()-xPos;
 		}
 		
 		int dyTop			= anchorRect.top;
 		int dyBottom		= screenHeight - anchorRect.bottom;
 
 		boolean onTop		= (dyTop > dyBottom) ? true : false;
+		
+		// Too tall menus scroll, others wrap their items, even if the last anchor clamped them
+		int scrollerHeight 	= LayoutParams.WRAP_CONTENT;
 
 		if (onTop) {
 			if (rootHeight > dyTop) {
 				yPos 			= 15;
-				LayoutParams l 	= mScroller.getLayoutParams();
-				l.height		= dyTop - anchor.getHeight();
+				scrollerHeight	= dyTop - height;
 			} else {
 				yPos = anchorRect.top - rootHeight;
 			}
@@ -405,16 +533,62 @@ public class QuickAction extends PopupWindows implements OnDismissListener {
 			yPos = anchorRect.bottom;
 			
 			if (rootHeight > dyBottom) { 
-				LayoutParams l 	= mScroller.getLayoutParams();
-				l.height		= dyBottom;
+				scrollerHeight	= dyBottom;
 			}
 		}
 		
-		showArrow(((onTop) ? R.id.arrow_down : R.id.arrow_up), arrowPos);
+		setScrollerHeight(scrollerHeight);
 		
-		setAnimationStyle(screenWidth, anchorRect.centerX(), onTop);
+		mPlacedX 			= xPos;
+		mPlacedY 			= yPos;
+		mPlacedWidth 		= rootWidth;
+		mPlacedHeight 		= (scrollerHeight == LayoutParams.WRAP_CONTENT) ? rootHeight 
+							: rootHeight - mScrollerHeight + scrollerHeight;
+		mPlacedArrowX 		= anchorRect.centerX() - xPos;
+		mPlacedOnTop 		= onTop;
+	}
+	
+	/**
+	 * Measures the menu and reads the screen size, unless the action set and configuration
+	 * are the same as last time.
+	 */
+	@SuppressWarnings("deprecation")
+	private void ensureMeasured() {
+		int orientation 	= mContext.getResources().getConfiguration().orientation;
+		
+		if (orientation != mMeasuredOrientation) {
+			onConfigurationChanged();
+			mMeasuredOrientation = orientation;
+		}
 		
-		mWindow.showAtLocation(anchor, Gravity.NO_GRAVITY, xPos, yPos);
+		if (mScreenWidth == 0) {
+			Display display = mWindowManager.getDefaultDisplay();
+			mScreenWidth 	= display.getWidth();
+			mScreenHeight	= display.getHeight();
+		}
+		
+		if (mMeasuredActionSet != mActionSet) {
+			// Measure the full height, not what the last placement clamped it to
+			setScrollerHeight(LayoutParams.WRAP_CONTENT);
+			mRootView.measure(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
+			
+			mRootWidth 		= mRootView.getMeasuredWidth();
+			mRootHeight 	= mRootView.getMeasuredHeight();
+			mScrollerHeight = mScroller.getMeasuredHeight();
+			mMeasuredActionSet = mActionSet;
+		}
+	}
+	
+	/**
+	 * Sets the height of the item scroller, laying it out again only if it changed.
+	 */
+	private void setScrollerHeight(int height) {
+		LayoutParams l 		= mScroller.getLayoutParams();
+		
+		if (l.height != height) {
+			l.height 		= height;
+			mScroller.setLayoutParams(l);
+		}
 	}
 	
 	/**
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2012 Brandon Tate
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brandontate.androidwebviewselection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Plain JVM tests for the packed selection record decoder.
+ *
+ * @author Brandon Tate
+ */
+public class SelectionPayloadTest {
+
+    /** A version 2 record, as android.selection.js sends it. */
+    private static final String RECORD = "2,42,980,10.5,20,110.25,40,5,-12,205,48.5,17";
+
+    @Test
+    public void decodesValidRecord(){
+
+        SelectionPayload payload = new SelectionPayload();
+
+        assertTrue(payload.decode(RECORD));
+        assertTrue(payload.isValid());
+        assertEquals(SelectionPayload.VERSION, payload.getVersion());
+        assertEquals(42, payload.getSequence());
+        assertEquals(980f, payload.getContentWidth(), 0f);
+        assertEquals(10.5f, payload.getHandleLeft(), 0f);
+        assertEquals(20f, payload.getHandleTop(), 0f);
+        assertEquals(110.25f, payload.getHandleRight(), 0f);
+        assertEquals(40f, payload.getHandleBottom(), 0f);
+        assertEquals(5f, payload.getMenuLeft(), 0f);
+        assertEquals(-12f, payload.getMenuTop(), 0f);
+        assertEquals(205f, payload.getMenuRight(), 0f);
+        assertEquals(48.5f, payload.getMenuBottom(), 0f);
+        assertEquals(17, payload.getTextLength());
+    }
+
+    @Test
+    public void decodesExponents(){
+
+        SelectionPayload payload = new SelectionPayload();
+
+        assertTrue(payload.decode("2,1,1e3,0,0,0,0,0,0,0,2.5E-1,-1"));
+        assertEquals(1000f, payload.getContentWidth(), 0f);
+        assertEquals(0.25f, payload.getMenuBottom(), 0.0001f);
+        assertEquals(-1, payload.getTextLength());
+    }
+
+    @Test
+    public void rejectsTooFewFields(){
+
+        SelectionPayload payload = new SelectionPayload();
+
+        assertFalse(payload.decode("2,42,980,10.5,20,110.25,40,5,-12,205,48.5"));
+        assertFalse(payload.isValid());
+    }
+
+    @Test
+    public void rejectsTooManyFields(){
+
+        SelectionPayload payload = new SelectionPayload();
+
+        assertFalse(payload.decode(RECORD + ",3"));
+        assertFalse(payload.isValid());
+    }
+
+    @Test
+    public void rejectsNonNumericField(){
+
+        SelectionPayload payload = new SelectionPayload();
+
+        assertFalse(payload.decode("2,42,980,10.5,abc,110.25,40,5,-12,205,48.5,17"));
+        assertFalse(payload.decode("2,42,980,10.5,,110.25,40,5,-12,205,48.5,17"));
+        assertFalse(payload.decode("2,42,980,10.5,20px,110.25,40,5,-12,205,48.5,17"));
+        assertFalse(payload.decode("2,42,980,10.5,1e,110.25,40,5,-12,205,48.5,17"));
+        assertFalse(payload.isValid());
+    }
+
+    @Test
+    public void rejectsOtherVersions(){
+
+        SelectionPayload payload = new SelectionPayload();
+
+        assertFalse(payload.decode("1,42,980,10.5,20,110.25,40,5,-12,205,48.5,17"));
+        assertFalse(payload.decode("3,42,980,10.5,20,110.25,40,5,-12,205,48.5,17"));
+        assertFalse(payload.isValid());
+    }
+
+    @Test
+    public void failedDecodeInvalidatesEarlierRecord(){
+
+        SelectionPayload payload = new SelectionPayload();
+
+        assertTrue(payload.decode(RECORD));
+        assertFalse(payload.decode(null));
+        assertFalse(payload.isValid());
+    }
+
+    @Test
+    public void peeksSequence(){
+
+        assertEquals(42, SelectionPayload.peekSequence(RECORD));
+        assertEquals(-1, SelectionPayload.peekSequence(null));
+        assertEquals(-1, SelectionPayload.peekSequence("2"));
+        assertEquals(-1, SelectionPayload.peekSequence("2,x,980"));
+        assertEquals(-1, SelectionPayload.peekSequence("2,4.5,980"));
+    }
+}